@@ -0,0 +1,24 @@
+package choloc.app.common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads, so that background pools don't keep the application alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+  private final String namePrefix;
+  private final AtomicInteger threadCount = new AtomicInteger();
+
+  public DaemonThreadFactory(String namePrefix) {
+    this.namePrefix = namePrefix;
+  }
+
+  @Override
+  public Thread newThread(Runnable runnable) {
+    final Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
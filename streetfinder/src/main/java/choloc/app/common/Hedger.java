@@ -0,0 +1,236 @@
+package choloc.app.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Sends hedged requests: if a request hasn't been answered after a delay, a duplicate request is
+ * sent, the first answer is used and the other request is aborted. The delay is the given
+ * percentile of the recent latencies (but at least a minimum), so that only the slowest requests
+ * are hedged: a 95th percentile means that about one in twenty requests is sent twice. No
+ * requests are hedged until enough latencies have been seen.
+ */
+public class Hedger {
+
+  private static final int LATENCY_SAMPLES = 512;
+  private static final int MIN_LATENCY_SAMPLES = 20;
+
+  private static ExecutorService defaultExecutor = null;
+
+  private final double percentile;
+  private final long minDelayMillis;
+  private final ExecutorService executor;
+
+  // Ring buffer of recent latencies.
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+  private int latencyCount = 0;
+
+  private final AtomicLong callCount = new AtomicLong();
+  private final AtomicLong hedgeCount = new AtomicLong();
+  private final AtomicLong hedgeWinCount = new AtomicLong();
+
+  /**
+   * A request that can be sent once.
+   */
+  public interface Attempt<T> extends Callable<T> {
+
+    /**
+     * Aborts the request if it is in progress. Called from another thread than the request.
+     */
+    void abort();
+  }
+
+  /**
+   * Creates a hedger with the given percentile (between 0 and 100) of recent latencies as delay.
+   */
+  public Hedger(double percentile, long minDelayMillis) {
+    this(percentile, minDelayMillis, null);
+  }
+
+  /**
+   * Creates a hedger that sends the requests with the given executor, or a shared default
+   * executor if it is null. Requests wait for each other, so the executor should not be bounded.
+   */
+  public Hedger(double percentile, long minDelayMillis, ExecutorService executor) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile is not valid.");
+    }
+    this.percentile = percentile;
+    this.minDelayMillis = minDelayMillis;
+    this.executor = executor == null ? getDefaultExecutor() : executor;
+  }
+
+  private static synchronized ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("hedge"));
+    }
+    return defaultExecutor;
+  }
+
+  /**
+   * Sends a request created by the supplier, and a second one if the first isn't answered in
+   * time. Returns the first answer; an answer that comes in too late is passed to the discarder
+   * (to release its resources). Fails only if all requests fail, with the first exception.
+   */
+  public <T> T execute(Supplier<? extends Attempt<T>> attempts, Consumer<? super T> discarder)
+      throws Exception {
+    callCount.incrementAndGet();
+    final CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+    final List<Sent<T>> sent = new ArrayList<>(2);
+    sent.add(send(attempts.get(), completionService, discarder));
+    final long delayMillis = getDelayMillis();
+    Future<T> winner = null;
+    try {
+      Exception failure = null;
+      int pending = 1;
+      while (pending > 0) {
+
+        // Wait for an answer, and hedge if the first request takes too long.
+        final Future<T> done = sent.size() > 1 || delayMillis < 0 ? completionService.take()
+            : completionService.poll(delayMillis, TimeUnit.MILLISECONDS);
+        if (done == null) {
+          hedgeCount.incrementAndGet();
+          sent.add(send(attempts.get(), completionService, discarder));
+          pending++;
+          continue;
+        }
+        pending--;
+
+        // Use the first answer.
+        try {
+          final T result = done.get();
+          winner = done;
+          if (done == sent.get(sent.size() - 1).future && sent.size() > 1) {
+            hedgeWinCount.incrementAndGet();
+          }
+          return result;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          }
+        }
+      }
+      throw failure;
+    } finally {
+      for (Sent<T> request : sent) {
+        if (request.future != winner) {
+          request.abandon();
+        }
+      }
+    }
+  }
+
+  private <T> Sent<T> send(Attempt<T> attempt, CompletionService<T> completionService,
+      Consumer<? super T> discarder) {
+    final Sent<T> result = new Sent<>(attempt, discarder);
+    result.future = completionService.submit(() -> {
+      final long start = System.nanoTime();
+      final T answer = attempt.call();
+      recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      return result.deliver(answer);
+    });
+    return result;
+  }
+
+  private synchronized void recordLatency(long latencyMillis) {
+    latencies[latencyCount % LATENCY_SAMPLES] = latencyMillis;
+    latencyCount++;
+  }
+
+  /**
+   * Returns the current hedging delay, or -1 if there aren't enough latencies yet.
+   */
+  public synchronized long getDelayMillis() {
+    if (latencyCount < MIN_LATENCY_SAMPLES) {
+      return -1;
+    }
+    final long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+    Arrays.sort(sorted);
+    final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+    return Math.max(minDelayMillis, sorted[Math.max(0, index)]);
+  }
+
+  public long getCallCount() {
+    return callCount.get();
+  }
+
+  /**
+   * Returns the number of calls for which a second request was sent.
+   */
+  public long getHedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /**
+   * Returns the number of calls that were answered by the second request.
+   */
+  public long getHedgeWinCount() {
+    return hedgeWinCount.get();
+  }
+
+  public double getHedgeRate() {
+    final long calls = callCount.get();
+    return calls == 0 ? 0 : (double) hedgeCount.get() / calls;
+  }
+
+  /**
+   * A request that was sent. An answer that comes in after the request was abandoned is
+   * discarded.
+   */
+  private static class Sent<T> {
+
+    private final Attempt<T> attempt;
+    private final Consumer<? super T> discarder;
+    private Future<T> future;
+    private boolean abandoned = false;
+    private boolean delivered = false;
+
+    Sent(Attempt<T> attempt, Consumer<? super T> discarder) {
+      this.attempt = attempt;
+      this.discarder = discarder;
+    }
+
+    T deliver(T answer) {
+      synchronized (this) {
+        if (!abandoned) {
+          delivered = true;
+          return answer;
+        }
+      }
+      discarder.accept(answer);
+      return null;
+    }
+
+    void abandon() {
+      final boolean discard;
+      synchronized (this) {
+        abandoned = true;
+        discard = delivered;
+      }
+      if (discard) {
+        try {
+          discarder.accept(future.get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          // Nothing to discard
+        }
+      } else {
+        attempt.abort();
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package choloc.app.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe least-recently-used cache bounded by the total (estimated) weight of its values,
+ * typically their size in bytes. Entries optionally expire a fixed time after they were put.
+ */
+public class LruCache<K, V> {
+
+  private final long maxWeight;
+  private final long timeToLiveNanos;
+  private final ToLongFunction<? super V> weigher;
+
+  private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long weight = 0;
+
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+
+  /**
+   * Creates a cache holding at most the given weight. A time to live of zero or less means that
+   * entries don't expire.
+   */
+  public LruCache(long maxWeight, long timeToLiveMillis, ToLongFunction<? super V> weigher) {
+    if (maxWeight <= 0) {
+      throw new IllegalArgumentException("Maximum weight is not valid.");
+    }
+    this.maxWeight = maxWeight;
+    this.timeToLiveNanos =
+        timeToLiveMillis > 0 ? timeToLiveMillis * 1_000_000L : Long.MAX_VALUE;
+    this.weigher = weigher;
+  }
+
+  public synchronized V get(K key) {
+    final Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    if (System.nanoTime() - entry.createdNanos > timeToLiveNanos) {
+      remove(key);
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.value;
+  }
+
+  public synchronized void put(K key, V value) {
+    final long valueWeight = weigher.applyAsLong(value);
+    if (valueWeight > maxWeight) {
+      remove(key);
+      return;
+    }
+    final Entry<V> previous = entries.put(key, new Entry<>(value, valueWeight, System.nanoTime()));
+    if (previous != null) {
+      weight -= previous.weight;
+    }
+    weight += valueWeight;
+
+    // Evict the least recently used entries until we fit.
+    final Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+    while (weight > maxWeight && iterator.hasNext()) {
+      final Map.Entry<K, Entry<V>> eldest = iterator.next();
+      weight -= eldest.getValue().weight;
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  public synchronized void remove(K key) {
+    final Entry<V> entry = entries.remove(key);
+    if (entry != null) {
+      weight -= entry.weight;
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  private static class Entry<V> {
+
+    private final V value;
+    private final long weight;
+    private final long createdNanos;
+
+    Entry(V value, long weight, long createdNanos) {
+      this.value = value;
+      this.weight = weight;
+      this.createdNanos = createdNanos;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package choloc.app.common;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Creates HTTP clients that keep connections alive in a pool, so that repeated requests to the
+ * same host don't set up a new connection (and TLS session) each time. The clients ask for gzip
+ * or deflate compressed responses and decompress them transparently while they are read. A client
+ * is thread safe and meant to be shared.
+ */
+public final class PooledHttpClients {
+
+  private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+
+  private PooledHttpClients() {
+  }
+
+  /**
+   * Creates a client with the given connection limits and default timeouts. The timeouts can be
+   * shortened per request.
+   */
+  public static CloseableHttpClient create(String userAgent, int maxConnections,
+      int maxConnectionsPerHost, int connectTimeoutMillis, int readTimeoutMillis) {
+    final PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+    final RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectionRequestTimeout(connectTimeoutMillis)
+        .setConnectTimeout(connectTimeoutMillis)
+        .setSocketTimeout(readTimeoutMillis)
+        .build();
+    return HttpClientBuilder.create()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+        .setUserAgent(userAgent)
+        .evictExpiredConnections()
+        .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .build();
+  }
+}
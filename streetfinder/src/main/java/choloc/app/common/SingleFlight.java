@@ -0,0 +1,74 @@
+package choloc.app.common;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical calls that are in flight at the same time: the first caller for a key
+ * makes the call, and callers that arrive for the same key before it finishes wait for it and
+ * share its result (or its exception). Nothing is kept once the call has finished, so this is not
+ * a cache. The result is shared between threads, so it should not be modified.
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+  private final AtomicLong callCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Makes the call, or waits for the identical call in flight. Exceptions thrown by the call are
+   * rethrown as they are, to all callers.
+   */
+  public V execute(K key, Callable<? extends V> call) throws Exception {
+    callCount.incrementAndGet();
+    final CompletableFuture<V> future = new CompletableFuture<>();
+    final CompletableFuture<V> inFlight = calls.putIfAbsent(key, future);
+    if (inFlight != null) {
+      coalescedCount.incrementAndGet();
+      return await(inFlight);
+    }
+    try {
+      final V result = call.call();
+      future.complete(result);
+      return result;
+    } catch (Exception | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      calls.remove(key, future);
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the number of calls that were requested, including the coalesced ones.
+   */
+  public long getCallCount() {
+    return callCount.get();
+  }
+
+  /**
+   * Returns the number of calls that were answered by an identical call in flight.
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+}
@@ -1,20 +1,57 @@
 package choloc.app.solr;
 
-import java.io.BufferedReader;
+import choloc.app.common.Hedger;
+import choloc.app.common.PooledHttpClients;
+import choloc.app.common.SingleFlight;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 
 // NOTE the SolrRequest class has a couple of default values, eg for the Streetname and Town token proximities
 // check there please
 
 public class Connector {
 
-  private final String USER_AGENT = "Mozilla/5.0";
+  private static final String USER_AGENT = "Mozilla/5.0";
+
+  // Longer queries (like batches) are sent as a form, as they may not fit in a URL.
+  private static final int MAX_GET_LENGTH = 4096;
+
+  // One client for all queries: it is thread safe and keeps connections to Solr alive.
+  private static final CloseableHttpClient CLIENT = PooledHttpClients.create(USER_AGENT,
+      PropertyReader.getInstance().getSolrMaxConnections(),
+      PropertyReader.getInstance().getSolrMaxConnections(),
+      PropertyReader.getInstance().getSolrConnectTimeout(),
+      PropertyReader.getInstance().getSolrReadTimeout());
+
+  // The Solr replicas, or null if none are configured.
+  private static final SolrEndpoints ENDPOINTS = createEndpoints();
+
+  private static final SingleFlight<String, SolrResult> SOLR_REQUESTS = new SingleFlight<>();
+
+  private static volatile Hedger hedger = null;
+
+  private static final HighlightCache HIGHLIGHT_CACHE = createHighlightCache();
 
   public static void main(String[] args) throws Exception {
     Connector conn = new Connector();
@@ -25,38 +62,279 @@ public class Connector {
 
   public LinkedHashMap<String, String> getSolrFTHighlights(String street, String municipality) {
     SolrRequest req = new SolrRequest(street, municipality);
+    final String requestString = req.assembleRequestString();
     try {
-      return doSolrQuery(req).parseJson();
+      if (HIGHLIGHT_CACHE == null) {
+        return doSolrQuery(requestString).parseJson();
+      }
+      return HIGHLIGHT_CACHE.get(requestString, () -> doSolrQuery(requestString).parseJson());
     } catch (Exception e) {
       e.printStackTrace();
     }
     return null;
   }
 
-  private SolrResult doSolrQuery(SolrRequest solrRequest) throws Exception {
+  /**
+   * Returns the highlights for many streets at once. The streets that are not cached are queried
+   * in batches (see {@link SolrBatchRequest}) of at most the configured number of streets, and
+   * the highlights are split by street again. The result has all keys, in order; the highlights
+   * are null for the streets of a batch that failed.
+   */
+  public <K> Map<K, LinkedHashMap<String, String>> getSolrFTHighlights(Collection<K> keys,
+      Function<? super K, String> streets, Function<? super K, String> municipalities) {
+    final Map<K, LinkedHashMap<String, String>> result = new LinkedHashMap<>();
+
+    // Use the cached highlights, and collect the distinct requests for the other streets.
+    final Map<String, SolrRequest> requests = new LinkedHashMap<>();
+    final Map<String, List<K>> keysByRequest = new LinkedHashMap<>();
+    for (K key : keys) {
+      final SolrRequest request = new SolrRequest(streets.apply(key), municipalities.apply(key));
+      final String requestString = request.assembleRequestString();
+      final LinkedHashMap<String, String> cached =
+          HIGHLIGHT_CACHE == null ? null : HIGHLIGHT_CACHE.getIfFresh(requestString);
+      result.put(key, cached);
+      if (cached == null) {
+        requests.putIfAbsent(requestString, request);
+        keysByRequest.computeIfAbsent(requestString, r -> new ArrayList<>()).add(key);
+      }
+    }
+
+    // Query the other streets in batches.
+    queryInBatches(requests, false, (solrResult, batchRequests) -> {
+      for (String requestString : batchRequests) {
+        final List<Highlight> highlights =
+            solrResult.getHighlights(requests.get(requestString).assembleQuery());
+        if (highlights == null) {
+          continue;
+        }
+        final LinkedHashMap<String, String> streetResult = SolrResult.toMap(highlights);
+        if (HIGHLIGHT_CACHE != null) {
+          HIGHLIGHT_CACHE.put(requestString, streetResult);
+        }
+        for (K key : keysByRequest.get(requestString)) {
+          result.put(key, new LinkedHashMap<>(streetResult));
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Returns the number of records for the street, without querying documents or highlights, or
+   * -1 if the query failed.
+   */
+  public long getSolrFTCount(String street, String municipality) {
+    SolrRequest req = new SolrRequest(street, municipality);
+    req.setCountOnly(true);
+    try {
+      return doSolrQuery(req.assembleRequestString()).getNumFound();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of records for many streets at once, queried in batches like
+   * {@link #getSolrFTHighlights(Collection, Function, Function)} but without documents or
+   * highlights. The result has all keys, in order; the count is null for the streets of a batch
+   * that failed.
+   */
+  public <K> Map<K, Long> getSolrFTCounts(Collection<K> keys,
+      Function<? super K, String> streets, Function<? super K, String> municipalities) {
+    final Map<K, Long> result = new LinkedHashMap<>();
+    final Map<String, SolrRequest> requests = new LinkedHashMap<>();
+    final Map<String, List<K>> keysByRequest = new LinkedHashMap<>();
+    for (K key : keys) {
+      final SolrRequest request = new SolrRequest(streets.apply(key), municipalities.apply(key));
+      request.setCountOnly(true);
+      final String requestString = request.assembleRequestString();
+      requests.putIfAbsent(requestString, request);
+      keysByRequest.computeIfAbsent(requestString, r -> new ArrayList<>()).add(key);
+      result.put(key, null);
+    }
+    queryInBatches(requests, true, (solrResult, batchRequests) -> {
+      for (String requestString : batchRequests) {
+        final Long count = solrResult.getCount(requests.get(requestString).assembleQuery());
+        keysByRequest.get(requestString).forEach(key -> result.put(key, count));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Queries the requests (by their request string) in batches of at most the configured number of
+   * streets. Only requests with the same filters and fields share a batch. Every result is passed
+   * to the consumer with the requests of its batch; a batch that fails is skipped.
+   */
+  private void queryInBatches(Map<String, SolrRequest> requests, boolean countOnly,
+      BiConsumer<SolrResult, List<String>> consumer) {
+
+    // Group the requests that can share a batch.
+    final Map<List<Object>, List<String>> compatibleRequests = new LinkedHashMap<>();
+    requests.forEach((requestString, request) -> compatibleRequests
+        .computeIfAbsent(SolrBatchRequest.getBatchKey(request), k -> new ArrayList<>())
+        .add(requestString));
+
+    // Query them in batches.
+    final int maxClauses = Math.max(1, PropertyReader.getInstance().getSolrBatchMaxClauses());
+    for (List<String> requestStrings : compatibleRequests.values()) {
+      for (int start = 0; start < requestStrings.size(); start += maxClauses) {
+        final List<String> batchRequests =
+            requestStrings.subList(start, Math.min(start + maxClauses, requestStrings.size()));
+        final SolrBatchRequest batch = new SolrBatchRequest();
+        batch.setCountOnly(countOnly);
+        batchRequests.forEach(requestString -> batch.add(requests.get(requestString)));
+        final SolrResult solrResult;
+        try {
+          solrResult = doSolrQuery(batch.assembleRequestString());
+        } catch (Exception e) {
+          e.printStackTrace();
+          continue;
+        }
+        consumer.accept(solrResult, batchRequests);
+      }
+    }
+  }
+
+  private static SolrEndpoints createEndpoints() {
+    final PropertyReader properties = PropertyReader.getInstance();
+    final List<String> urls = properties.getSolrUrls();
+    if (urls.isEmpty()) {
+      System.out.println("No Solr URL is configured.");
+      return null;
+    }
+    return new SolrEndpoints(CLIENT, urls, properties.getSolrMaxFailures(),
+        properties.getSolrSlowFactor(), properties.getSolrProbeInterval());
+  }
+
+  /**
+   * Returns the Solr replicas (for their statistics), or null if none are configured.
+   */
+  public static SolrEndpoints getEndpoints() {
+    return ENDPOINTS;
+  }
+
+  private static HighlightCache createHighlightCache() {
+    final PropertyReader properties = PropertyReader.getInstance();
+    final String directory = properties.getHighlightCacheDir();
+    try {
+      return new HighlightCache(directory == null ? null : Paths.get(directory),
+          properties.getHighlightCacheMaxBytes(), properties.getHighlightCacheTtl(),
+          properties.getHighlightCacheStaleWhileRevalidate());
+    } catch (IOException e) {
+      System.out.println("Could not create the highlight cache: " + e.getMessage());
+      return null;
+    }
+  }
 
-    String solrUrl = PropertyReader.getInstance().getSolrUrl();
-    String requestUrl = solrUrl + solrRequest.assembleRequestString();
+  /**
+   * Returns the cache of highlights (for its statistics), or null if it could not be created.
+   */
+  public static HighlightCache getHighlightCache() {
+    return HIGHLIGHT_CACHE;
+  }
 
-    HttpClient client = HttpClientBuilder.create().build();
-    HttpGet request = new HttpGet(requestUrl);
-    HttpResponse response = client.execute(request);
-    // add request header
-    request.addHeader("User-Agent", USER_AGENT);
+  private SolrResult doSolrQuery(String requestString) throws Exception {
+    if (ENDPOINTS == null) {
+      throw new IOException("No Solr URL is configured.");
+    }
 
-    System.out.println("\nSending 'GET' request to URL : " + requestUrl);
-    System.out.println("Response Code : " +
-        response.getStatusLine().getStatusCode());
+    // Identical queries that are in flight share one request.
+    return SOLR_REQUESTS.execute(requestString, () -> sendSolrQuery(requestString));
+  }
 
-    BufferedReader rd = new BufferedReader(
-        new InputStreamReader(response.getEntity().getContent()));
+  private SolrResult sendSolrQuery(String requestString) throws Exception {
 
-    StringBuffer result = new StringBuffer();
-    String line;
-    while ((line = rd.readLine()) != null) {
-      result.append(line);
+    // Every attempt chooses a replica: a hedged attempt may go to another one.
+    final Hedger hedger = Connector.hedger;
+    if (hedger == null) {
+      return new SolrAttempt(ENDPOINTS.choose(), requestString).call();
     }
-    return new SolrResult(result.toString());
+    return hedger.execute(() -> new SolrAttempt(ENDPOINTS.choose(), requestString), result -> { });
+  }
+
+  /**
+   * Sets the hedger used for all Solr queries, or stops hedging if null. The hedger keeps the
+   * metrics.
+   */
+  public static void setHedger(Hedger hedger) {
+    Connector.hedger = hedger;
+  }
+
+  private static class SolrAttempt implements Hedger.Attempt<SolrResult> {
+
+    private final SolrEndpoints.Endpoint endpoint;
+    private final String requestUrl;
+    private final HttpRequestBase request;
+    private volatile boolean aborted = false;
+    private int statusCode = 0;
+
+    SolrAttempt(SolrEndpoints.Endpoint endpoint, String requestString) {
+      this.endpoint = endpoint;
+      this.requestUrl = endpoint.getUrl() + requestString;
+      final int query = requestUrl.indexOf('?');
+      if (requestUrl.length() <= MAX_GET_LENGTH || query < 0) {
+        this.request = new HttpGet(requestUrl);
+      } else {
+        final HttpPost post = new HttpPost(requestUrl.substring(0, query));
+        post.setEntity(new StringEntity(requestUrl.substring(query + 1),
+            ContentType.APPLICATION_FORM_URLENCODED));
+        this.request = post;
+      }
+    }
+
+    @Override
+    public SolrResult call() throws Exception {
+      System.out.println("\nSending '" + request.getMethod() + "' request to URL : " + requestUrl);
+      endpoint.start();
+      final long start = System.nanoTime();
+      try {
+        final SolrResult result = execute();
+        endpoint.succeed(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+      } catch (Exception e) {
+
+        // A rejected query or an aborted attempt says nothing about the replica.
+        if (aborted || (statusCode >= 400 && statusCode < 500)) {
+          endpoint.finish();
+        } else {
+          endpoint.fail();
+        }
+        throw e;
+      }
+    }
+
+    private SolrResult execute() throws IOException {
+      try (CloseableHttpResponse response = CLIENT.execute(request)) {
+        statusCode = response.getStatusLine().getStatusCode();
+        System.out.println("Response Code : " + statusCode);
+        final HttpEntity entity = response.getEntity();
+        if (statusCode != HttpStatus.SC_OK || entity == null) {
+          throw new IOException("Solr returned HTTP response code: " + statusCode);
+        }
+
+        // Parse the response while it comes in.
+        final Charset charset = ContentType.getOrDefault(entity).getCharset();
+        try (Reader reader = new InputStreamReader(entity.getContent(),
+            charset == null ? StandardCharsets.UTF_8 : charset)) {
+          return SolrResult.parse(reader);
+        }
+      }
+    }
+
+    @Override
+    public void abort() {
+      aborted = true;
+      request.abort();
+    }
+  }
+
+  /**
+   * Returns the number of Solr queries that were answered by an identical query in flight.
+   */
+  public static long getCoalescedSolrRequestCount() {
+    return SOLR_REQUESTS.getCoalescedCount();
   }
 
   private void testPrintResults(String street, String town) {
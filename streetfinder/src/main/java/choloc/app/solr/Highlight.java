@@ -0,0 +1,43 @@
+package choloc.app.solr;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The highlighted snippets of one highlight field (one language of the full text) of a Europeana
+ * record.
+ */
+public class Highlight {
+
+    private final String europeanaId;
+    private final String field;
+    private final List<String> snippets;
+
+    public Highlight(String europeanaId, String field, List<String> snippets){
+        this.europeanaId = europeanaId;
+        this.field = field;
+        this.snippets = Collections.unmodifiableList(snippets);
+    }
+
+    public String getEuropeanaId() {
+        return europeanaId;
+    }
+
+    /**
+     * Returns the highlight field, for instance "fulltext.nl".
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Returns the language of the full text, which is the suffix of the field name.
+     */
+    public String getLanguage() {
+        return field.substring(field.lastIndexOf('.') + 1);
+    }
+
+    public List<String> getSnippets() {
+        return snippets;
+    }
+}
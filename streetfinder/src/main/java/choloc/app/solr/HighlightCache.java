@@ -0,0 +1,266 @@
+package choloc.app.solr;
+
+import choloc.app.common.DaemonThreadFactory;
+import choloc.app.common.LruCache;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of Solr highlights per request, in two tiers: a memory tier bounded by the (estimated)
+ * bytes taken by the highlights, and an optional disk tier that survives restarts. The key is the
+ * request string of a street's own query (see {@link SolrRequest#assembleRequestString()}), which
+ * has the filter queries and the (highlighted) fields, so that the highlights of other filters or
+ * another profile are cached apart. Highlights are fresh for a time to live; after that they are
+ * queried again. In stale-while-revalidate mode, expired highlights are returned right away while
+ * they are queried again in the background.
+ */
+public class HighlightCache {
+
+  private static final long BYTES_PER_ENTRY = 128;
+  private static final long BYTES_PER_HIGHLIGHT = 64;
+
+  private final LruCache<String, Entry> memory;
+  private final Path directory;
+  private final long timeToLiveMillis;
+  private final boolean staleWhileRevalidate;
+
+  private final Gson gson = new Gson();
+  private final ExecutorService refreshExecutor = Executors
+      .newFixedThreadPool(2, new DaemonThreadFactory("highlight-refresh"));
+  private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong memoryHitCount = new AtomicLong();
+  private final AtomicLong diskHitCount = new AtomicLong();
+  private final AtomicLong staleHitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a cache that keeps highlights in memory and, if the directory is not null, on
+   * disk.
+   */
+  public HighlightCache(Path directory, long maxBytes, long timeToLiveMillis,
+      boolean staleWhileRevalidate) throws IOException {
+    this.memory = new LruCache<>(maxBytes, 0, HighlightCache::estimateBytes);
+    this.directory = directory;
+    this.timeToLiveMillis = timeToLiveMillis;
+    this.staleWhileRevalidate = staleWhileRevalidate;
+    if (directory != null) {
+      Files.createDirectories(directory);
+    }
+  }
+
+  /**
+   * Returns the highlights for the request, querying them with the loader if they are not cached
+   * or expired. Highlights that the loader returns as null are not cached.
+   */
+  public LinkedHashMap<String, String> get(String key,
+      Callable<LinkedHashMap<String, String>> loader) throws Exception {
+
+    // Look in memory, then on disk.
+    Entry entry = memory.get(key);
+    if (entry != null) {
+      memoryHitCount.incrementAndGet();
+    } else {
+      entry = readEntry(key);
+      if (entry != null) {
+        diskHitCount.incrementAndGet();
+        memory.put(key, entry);
+      }
+    }
+
+    // Use the highlights if they are fresh, or if we may use them while they are refreshed.
+    if (entry != null && System.currentTimeMillis() - entry.storedAt < timeToLiveMillis) {
+      return new LinkedHashMap<>(entry.highlights);
+    }
+    if (entry != null && staleWhileRevalidate) {
+      staleHitCount.incrementAndGet();
+      refreshInBackground(key, loader);
+      return new LinkedHashMap<>(entry.highlights);
+    }
+
+    // Query the highlights.
+    missCount.incrementAndGet();
+    final LinkedHashMap<String, String> highlights = load(key, loader);
+    return highlights == null ? null : new LinkedHashMap<>(highlights);
+  }
+
+  /**
+   * Returns the highlights for the request if they are cached and fresh, or null otherwise (to be
+   * queried, and then {@link #put}).
+   */
+  public LinkedHashMap<String, String> getIfFresh(String key) {
+    Entry entry = memory.get(key);
+    final boolean fromDisk = entry == null;
+    if (fromDisk) {
+      entry = readEntry(key);
+      if (entry != null) {
+        memory.put(key, entry);
+      }
+    }
+    if (entry == null || System.currentTimeMillis() - entry.storedAt >= timeToLiveMillis) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    (fromDisk ? diskHitCount : memoryHitCount).incrementAndGet();
+    return new LinkedHashMap<>(entry.highlights);
+  }
+
+  /**
+   * Stores highlights that were queried with the request.
+   */
+  public void put(String key, LinkedHashMap<String, String> highlights) {
+    final Entry entry = new Entry(key, System.currentTimeMillis(), new LinkedHashMap<>(highlights));
+    memory.put(key, entry);
+    writeEntry(key, entry);
+  }
+
+  private LinkedHashMap<String, String> load(String key,
+      Callable<LinkedHashMap<String, String>> loader) throws Exception {
+    final LinkedHashMap<String, String> highlights = loader.call();
+    if (highlights != null) {
+      put(key, highlights);
+    }
+    return highlights;
+  }
+
+  private void refreshInBackground(String key,
+      Callable<LinkedHashMap<String, String>> loader) {
+    if (refreshing.add(key)) {
+      refreshExecutor.submit(() -> {
+        try {
+          load(key, loader);
+        } catch (Exception e) {
+          e.printStackTrace();
+        } finally {
+          refreshing.remove(key);
+        }
+      });
+    }
+  }
+
+  private Entry readEntry(String key) {
+    if (directory == null) {
+      return null;
+    }
+    try (Reader reader = Files.newBufferedReader(getFile(key), StandardCharsets.UTF_8)) {
+      final Entry entry = gson.fromJson(reader, Entry.class);
+      return entry != null && entry.highlights != null && key.equals(entry.request) ? entry
+          : null;
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException | JsonParseException e) {
+      System.out.println("Could not read cached highlights: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private void writeEntry(String key, Entry entry) {
+    if (directory == null) {
+      return;
+    }
+    try {
+      final Path temporaryFile = Files.createTempFile(directory, "highlights", ".tmp");
+      try (Writer writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+        gson.toJson(entry, writer);
+      }
+      Files.move(temporaryFile, getFile(key), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("Could not cache highlights: " + e.getMessage());
+    }
+  }
+
+  private Path getFile(String key) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(key.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder fileName = new StringBuilder(2 * digest.length + 5);
+      for (byte b : digest) {
+        fileName.append(String.format("%02x", b & 0xff));
+      }
+      return directory.resolve(fileName.append(".json").toString());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available.", e);
+    }
+  }
+
+  private static long estimateBytes(Entry entry) {
+    long result = BYTES_PER_ENTRY;
+    for (Map.Entry<String, String> highlight : entry.highlights.entrySet()) {
+      result += BYTES_PER_HIGHLIGHT
+          + 2L * (highlight.getKey().length() + highlight.getValue().length());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of lookups answered from memory (fresh or stale).
+   */
+  public long getMemoryHitCount() {
+    return memoryHitCount.get();
+  }
+
+  public long getDiskHitCount() {
+    return diskHitCount.get();
+  }
+
+  /**
+   * Returns the number of lookups answered with expired highlights while they were refreshed.
+   */
+  public long getStaleHitCount() {
+    return staleHitCount.get();
+  }
+
+  /**
+   * Returns the number of lookups for which Solr was queried.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return memory.getEvictionCount();
+  }
+
+  public long getEstimatedBytes() {
+    return memory.getWeight();
+  }
+
+  public void clear() {
+    memory.clear();
+  }
+
+  /**
+   * Cached highlights, as stored on disk.
+   */
+  private static class Entry {
+
+    private final String request;
+    private final long storedAt;
+    private final LinkedHashMap<String, String> highlights;
+
+    Entry(String request, long storedAt, LinkedHashMap<String, String> highlights) {
+      this.request = request;
+      this.storedAt = storedAt;
+      this.highlights = highlights;
+    }
+  }
+}
@@ -2,7 +2,10 @@ package choloc.app.solr;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import org.apache.commons.lang3.StringUtils;
 
 public class PropertyReader {
 
@@ -35,7 +38,31 @@ public class PropertyReader {
     }
 
     public String getSolrUrl(){
-        return this.props.getProperty("solrurl");
+        List<String> urls = getSolrUrls();
+        return urls.isEmpty() ? null : urls.get(0);
+    }
+    /**
+     * Returns the base URLs of the Solr replicas: solrurl can be a comma separated list.
+     */
+    public List<String> getSolrUrls(){
+        List<String> urls = new ArrayList<>();
+        String value = StringUtils.defaultString(this.props.getProperty("solrurl"));
+        for (String url : StringUtils.split(value, ',')){
+            if (StringUtils.isNotBlank(url)){
+                urls.add(url.trim());
+            }
+        }
+        return urls;
+    }
+    public int getSolrMaxFailures(){
+        return getIntProperty("solrmaxfailures", 3);
+    }
+    public double getSolrSlowFactor(){
+        String value = getStringProperty("solrslowfactor");
+        return value == null ? 4 : Double.parseDouble(value);
+    }
+    public long getSolrProbeInterval(){
+        return getLongProperty("solrprobeinterval", 10000);
     }
     public String getStreetTokenDist(){
         return this.props.getProperty("streettokendist");
@@ -43,6 +70,84 @@ public class PropertyReader {
     public String getTownTokenDist(){
         return this.props.getProperty("towntokendist");
     }
+    public int getSolrConnectTimeout(){
+        return getIntProperty("solrconnecttimeout", 5000);
+    }
+    public int getSolrReadTimeout(){
+        return getIntProperty("solrreadtimeout", 30000);
+    }
+    public int getSolrMaxConnections(){
+        return getIntProperty("solrmaxconnections", 20);
+    }
+
+    public String getSolrUniqueKey(){
+        String value = getStringProperty("solruniquekey");
+        return value == null ? "europeana_id" : value;
+    }
+    public int getSolrBatchMaxClauses(){
+        return getIntProperty("solrbatchmaxclauses", 20);
+    }
+    public boolean getSolrTownAsFilter(){
+        return getBooleanProperty("solrtownasfilter");
+    }
+    public String getSolrLanguage(){
+        return getStringProperty("solrlanguage");
+    }
+    public String getSolrLanguageField(){
+        String value = getStringProperty("solrlanguagefield");
+        return value == null ? "LANGUAGE" : value;
+    }
+    public String getSolrDateFrom(){
+        return getStringProperty("solrdatefrom");
+    }
+    public String getSolrDateTo(){
+        return getStringProperty("solrdateto");
+    }
+    public String getSolrDateField(){
+        String value = getStringProperty("solrdatefield");
+        return value == null ? "proxy_dcterms_issued" : value;
+    }
+    public String getSolrProfile(){
+        return getStringProperty("solrprofile");
+    }
+    public String getSolrProfileFl(String profile){
+        return getStringProperty("solrprofile." + profile + ".fl");
+    }
+    public String getSolrProfileHlfl(String profile){
+        return getStringProperty("solrprofile." + profile + ".hlfl");
+    }
+    public String getHighlightCacheDir(){
+        return getStringProperty("highlightcachedir");
+    }
+    public long getHighlightCacheMaxBytes(){
+        return getLongProperty("highlightcachemaxbytes", 16L * 1024 * 1024);
+    }
+    public long getHighlightCacheTtl(){
+        return getLongProperty("highlightcachettl", 24L * 60 * 60 * 1000);
+    }
+    public boolean getHighlightCacheStaleWhileRevalidate(){
+        return getBooleanProperty("highlightcachestalewhilerevalidate");
+    }
+
+    private String getStringProperty(String name){
+        String value = this.props.getProperty(name);
+        return StringUtils.isBlank(value) ? null : value.trim();
+    }
+
+    private boolean getBooleanProperty(String name){
+        String value = this.props.getProperty(name);
+        return !StringUtils.isBlank(value) && Boolean.parseBoolean(value.trim());
+    }
+
+    private int getIntProperty(String name, int defaultValue){
+        String value = this.props.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private long getLongProperty(String name, long defaultValue){
+        String value = this.props.getProperty(name);
+        return StringUtils.isBlank(value) ? defaultValue : Long.parseLong(value.trim());
+    }
 
 
 }
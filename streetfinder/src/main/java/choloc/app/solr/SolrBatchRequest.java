@@ -0,0 +1,115 @@
+package choloc.app.solr;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One Solr query for the full texts of many streets: the queries of the streets are combined with
+ * OR, and every query is also passed as a group query so that the response lists the matching
+ * records per street. The highlights can then be split by street using the record ids (see
+ * {@link SolrResult#getHighlights(String)}). A count only query passes every query as a facet
+ * query instead, so that the response only has the number of records per street (see
+ * {@link SolrResult#getCount(String)}).
+ *
+ * <p>The requests in a batch share their filter queries and their (highlighted) fields: only
+ * requests with the same {@link #getBatchKey(SolrRequest) batch key} can be combined.
+ */
+public class SolrBatchRequest {
+
+    private final List<SolrRequest> requests = new ArrayList<>();
+
+    private String wt = "json";
+
+    // Records per street: the default number of rows of a single query.
+    private int groupLimit = 10;
+
+    private boolean countOnly = false;
+
+    public void add(SolrRequest request){
+        if (!requests.isEmpty() && !getBatchKey(request).equals(getBatchKey(requests.get(0)))){
+            throw new IllegalArgumentException("Request can't be combined with this batch.");
+        }
+        requests.add(request);
+    }
+
+    /**
+     * Returns the parts of the request that all requests in a batch should have in common.
+     */
+    public static List<Object> getBatchKey(SolrRequest request){
+        return Arrays.asList(request.assembleFilterQueries(), request.getFl(), request.getHlfl());
+    }
+
+    public int size(){
+        return requests.size();
+    }
+
+    /**
+     * Returns the group queries, in the order the requests were added. These are the keys of the
+     * groups in the result.
+     */
+    public List<String> getGroupQueries(){
+        List<String> result = new ArrayList<>(requests.size());
+        for (SolrRequest request : requests){
+            result.add(request.assembleQuery());
+        }
+        return result;
+    }
+
+    public void setGroupLimit(int groupLimit) {
+        this.groupLimit = groupLimit;
+    }
+
+    public void setCountOnly(boolean countOnly) {
+        this.countOnly = countOnly;
+    }
+
+    public String assembleRequestString(){
+        List<String> groupQueries = getGroupQueries();
+        StringBuilder query = new StringBuilder();
+        for (String groupQuery : groupQueries){
+            if (query.length() > 0){
+                query.append(" OR ");
+            }
+            query.append('(').append(groupQuery).append(')');
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("select?");
+        try {
+            if (countOnly) {
+                sb.append("rows=0&");
+                sb.append("facet=true&");
+                for (String groupQuery : groupQueries){
+                    sb.append("facet.query=" + URLEncoder.encode(groupQuery, "UTF-8") + "&");
+                }
+            } else {
+                // The ids are needed to assign the highlights to the groups.
+                SolrRequest first = requests.get(0);
+                String uniqueKey = PropertyReader.getInstance().getSolrUniqueKey();
+                String fl = uniqueKey + ", " + first.getFl();
+                sb.append("fl=" + URLEncoder.encode(fl, "UTF-8") + "&");
+                sb.append("hl.fl=" + URLEncoder.encode(first.getHlfl(), "UTF-8") + "&");
+                sb.append("hl=on&");
+                sb.append("group=true&");
+                sb.append("group.limit=" + groupLimit + "&");
+                for (String groupQuery : groupQueries){
+                    sb.append("group.query=" + URLEncoder.encode(groupQuery, "UTF-8") + "&");
+                }
+            }
+            if (!requests.isEmpty()){
+                for (String filterQuery : requests.get(0).assembleFilterQueries()){
+                    sb.append("fq=" + URLEncoder.encode(filterQuery, "UTF-8") + "&");
+                }
+            }
+            sb.append("q=" + URLEncoder.encode(query.toString(), "UTF-8") + "&");
+            sb.append("wt=" + URLEncoder.encode(wt, "UTF-8") + "&");
+            return sb.toString();
+        } catch (UnsupportedEncodingException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,273 @@
+package choloc.app.solr;
+
+import choloc.app.common.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Spreads the queries over the Solr replicas, preferring the ones with the lowest recent latency.
+ * Every query goes to the better of two random replicas, scored by their exponentially weighted
+ * moving average (EWMA) latency and the queries they have in flight, so that load is spread and a
+ * slow replica gets few queries. A replica is ejected after a number of consecutive failures, or
+ * when it is much slower than the fastest replica; ejected replicas are probed in the background
+ * with a cheap query, and come back when they answer in time.
+ */
+public class SolrEndpoints {
+
+  private static final double EWMA_WEIGHT = 0.2;
+  private static final String PROBE_REQUEST = "select?q=*:*&rows=0&wt=json";
+
+  private final CloseableHttpClient client;
+  private final List<Endpoint> endpoints;
+  private final int maxFailures;
+  private final double slowFactor;
+  private final long probeIntervalMillis;
+
+  private final ScheduledExecutorService prober = Executors
+      .newSingleThreadScheduledExecutor(new DaemonThreadFactory("solr-probe"));
+
+  /**
+   * Creates endpoints for the base URLs (ending with a slash). A replica is ejected after the
+   * given number of consecutive failures, or if its latency is more than the given factor times
+   * the latency of the fastest replica.
+   */
+  public SolrEndpoints(CloseableHttpClient client, List<String> urls, int maxFailures,
+      double slowFactor, long probeIntervalMillis) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("No Solr URLs.");
+    }
+    final List<Endpoint> endpoints = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      endpoints.add(new Endpoint(url));
+    }
+    this.client = client;
+    this.endpoints = Collections.unmodifiableList(endpoints);
+    this.maxFailures = maxFailures;
+    this.slowFactor = slowFactor;
+    this.probeIntervalMillis = probeIntervalMillis;
+  }
+
+  /**
+   * Chooses the endpoint for a query. If all replicas are ejected, the one that was ejected
+   * longest ago is used: a query that may fail is better than none.
+   */
+  public synchronized Endpoint choose() {
+    final List<Endpoint> available = new ArrayList<>(endpoints.size());
+    Endpoint oldestEjected = null;
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.ejected) {
+        available.add(endpoint);
+      } else if (oldestEjected == null || endpoint.ejectedAt < oldestEjected.ejectedAt) {
+        oldestEjected = endpoint;
+      }
+    }
+    if (available.isEmpty()) {
+      return oldestEjected;
+    }
+    if (available.size() == 1) {
+      return available.get(0);
+    }
+
+    // The better of two random replicas.
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int first = random.nextInt(available.size());
+    final int second = (first + 1 + random.nextInt(available.size() - 1)) % available.size();
+    final Endpoint a = available.get(first);
+    final Endpoint b = available.get(second);
+    return a.getScore() <= b.getScore() ? a : b;
+  }
+
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  private synchronized double getFastestLatency() {
+    double result = Double.MAX_VALUE;
+    for (Endpoint endpoint : endpoints) {
+      if (!endpoint.ejected && endpoint.ewmaMillis >= 0) {
+        result = Math.min(result, endpoint.ewmaMillis);
+      }
+    }
+    return result;
+  }
+
+  private void scheduleProbe(Endpoint endpoint) {
+    prober.schedule(() -> probe(endpoint), probeIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void probe(Endpoint endpoint) {
+    final long start = System.nanoTime();
+    final HttpGet request = new HttpGet(endpoint.url + PROBE_REQUEST);
+    try (CloseableHttpResponse response = client.execute(request)) {
+      EntityUtils.consume(response.getEntity());
+      final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      final double fastest = getFastestLatency();
+      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK
+          && (fastest == Double.MAX_VALUE || latencyMillis <= slowFactor * fastest)) {
+        synchronized (this) {
+          endpoint.ejected = false;
+          endpoint.failures = 0;
+          endpoint.ewmaMillis = latencyMillis;
+        }
+        System.out.println("Solr replica is back: " + endpoint.url);
+        return;
+      }
+    } catch (IOException e) {
+      // Still down
+    }
+    scheduleProbe(endpoint);
+  }
+
+  /**
+   * A Solr replica. Its state is guarded by the endpoints it belongs to.
+   */
+  public class Endpoint {
+
+    private final String url;
+
+    private double ewmaMillis = -1;
+    private int inFlight = 0;
+    private int failures = 0;
+    private boolean ejected = false;
+    private long ejectedAt = 0;
+    private long requestCount = 0;
+    private long failureCount = 0;
+    private long ejectionCount = 0;
+
+    private Endpoint(String url) {
+      this.url = url;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    /**
+     * Records that a query is sent to the replica.
+     */
+    public void start() {
+      synchronized (SolrEndpoints.this) {
+        inFlight++;
+        requestCount++;
+      }
+    }
+
+    /**
+     * Records that a query was answered in the given time.
+     */
+    public void succeed(long latencyMillis) {
+      final boolean eject;
+      synchronized (SolrEndpoints.this) {
+        inFlight--;
+        failures = 0;
+        ewmaMillis = ewmaMillis < 0 ? latencyMillis
+            : EWMA_WEIGHT * latencyMillis + (1 - EWMA_WEIGHT) * ewmaMillis;
+        eject = ewmaMillis > slowFactor * getFastestLatency();
+      }
+      if (eject) {
+        eject("slow");
+      }
+    }
+
+    /**
+     * Records that a query failed because of the replica (not because of the query).
+     */
+    public void fail() {
+      final boolean eject;
+      synchronized (SolrEndpoints.this) {
+        inFlight--;
+        failures++;
+        failureCount++;
+        eject = failures >= maxFailures;
+      }
+      if (eject) {
+        eject("failing");
+      }
+    }
+
+    /**
+     * Records that a query ended without saying anything about the replica (for instance because
+     * it was aborted).
+     */
+    public void finish() {
+      synchronized (SolrEndpoints.this) {
+        inFlight--;
+      }
+    }
+
+    /**
+     * Ejects the replica, unless it is the last one available.
+     */
+    private void eject(String reason) {
+      synchronized (SolrEndpoints.this) {
+        if (ejected || getAvailableCount() <= 1) {
+          return;
+        }
+        ejected = true;
+        ejectedAt = System.currentTimeMillis();
+        ejectionCount++;
+      }
+      System.out.println("Solr replica is " + reason + ", ejecting it: " + url);
+      scheduleProbe(this);
+    }
+
+    private int getAvailableCount() {
+      int result = 0;
+      for (Endpoint endpoint : endpoints) {
+        if (!endpoint.ejected) {
+          result++;
+        }
+      }
+      return result;
+    }
+
+    // Replicas that haven't answered yet score best, so that they are tried.
+    private double getScore() {
+      return Math.max(ewmaMillis, 0) * (inFlight + 1);
+    }
+
+    /**
+     * Returns the moving average of the latency, or -1 if no query was answered yet.
+     */
+    public double getLatencyMillis() {
+      synchronized (SolrEndpoints.this) {
+        return ewmaMillis;
+      }
+    }
+
+    public boolean isAvailable() {
+      synchronized (SolrEndpoints.this) {
+        return !ejected;
+      }
+    }
+
+    public long getRequestCount() {
+      synchronized (SolrEndpoints.this) {
+        return requestCount;
+      }
+    }
+
+    public long getFailureCount() {
+      synchronized (SolrEndpoints.this) {
+        return failureCount;
+      }
+    }
+
+    public long getEjectionCount() {
+      synchronized (SolrEndpoints.this) {
+        return ejectionCount;
+      }
+    }
+  }
+}
@@ -2,6 +2,8 @@ package choloc.app.solr;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 
 public class SolrRequest {
@@ -14,12 +16,28 @@ public class SolrRequest {
     private String indent = "on";
     private String wt = "json";
 
+    // Only count the records: no documents and no highlighting.
+    private boolean countOnly = false;
+
+    // Put the town in a filter query, which Solr caches for all streets in the town, instead of
+    // in the (scored) query. The town then needn't be near the street in the text.
+    private boolean townAsFilter = PropertyReader.getInstance().getSolrTownAsFilter();
+
+    // Filters on the language and the (issue) date of the records, or null for none.
+    private String language = PropertyReader.getInstance().getSolrLanguage();
+    private String dateFrom = PropertyReader.getInstance().getSolrDateFrom();
+    private String dateTo = PropertyReader.getInstance().getSolrDateTo();
+
     private String streetName = "";
     private String townName = "";
 
     public SolrRequest(String streetName, String townName){
         this.streetName = streetName;
         this.townName = townName;
+        String profile = PropertyReader.getInstance().getSolrProfile();
+        if (profile != null){
+            setProfile(profile);
+        }
     }
 
     public SolrRequest(String streetName, String townName, String fl, String hlfl){
@@ -39,9 +57,17 @@ public class SolrRequest {
 
     // "Korte Voorhout"~2 AND fulltext:"Voorhout haag"~30&
 
-    private String assembleQuery() {
+    String assembleQuery() {
         // fulltext:"brink assen"~30
         String query = "fulltext:";
+        if (townAsFilter && StringUtils.isNoneBlank(streetName, townName)){
+            if (StringUtils.contains(streetName, " ")){
+                return query + "\"" + streetName.trim() + "\"~"
+                        + PropertyReader.getInstance().getStreetTokenDist();
+            } else {
+                return query + "\"" + streetName + "\"";
+            }
+        }
         if (StringUtils.isNoneBlank(streetName, townName)){
             if (StringUtils.contains(streetName, " ")){
                 String part0 = StringUtils.split(streetName, " ")[0];
@@ -60,6 +86,26 @@ public class SolrRequest {
         return query + "jammerdån";
     }
 
+    /**
+     * Returns the constraints that don't depend on the street, as filter queries: these are cached
+     * by Solr, and can be shared by all streets in a batch.
+     */
+    List<String> assembleFilterQueries() {
+        List<String> filterQueries = new ArrayList<>();
+        if (townAsFilter && StringUtils.isNoneBlank(streetName, townName)){
+            filterQueries.add("fulltext:\"" + townName + "\"");
+        }
+        if (StringUtils.isNotBlank(language)){
+            filterQueries.add(PropertyReader.getInstance().getSolrLanguageField() + ":" + language);
+        }
+        if (StringUtils.isNotBlank(dateFrom) || StringUtils.isNotBlank(dateTo)){
+            filterQueries.add(PropertyReader.getInstance().getSolrDateField() + ":["
+                    + (StringUtils.isBlank(dateFrom) ? "*" : dateFrom) + " TO "
+                    + (StringUtils.isBlank(dateTo) ? "*" : dateTo) + "]");
+        }
+        return filterQueries;
+    }
+
     private String getHl() {
         return hl;
     }
@@ -76,7 +122,7 @@ public class SolrRequest {
         this.indent = indent;
     }
 
-    private String getFl() {
+    String getFl() {
         return fl;
     }
 
@@ -84,7 +130,7 @@ public class SolrRequest {
         this.fl = fl;
     }
 
-    private String getHlfl() {
+    String getHlfl() {
         return hlfl;
     }
 
@@ -100,6 +146,46 @@ public class SolrRequest {
         this.wt = wt;
     }
 
+    public void setCountOnly(boolean countOnly) {
+        this.countOnly = countOnly;
+    }
+
+    public void setTownAsFilter(boolean townAsFilter) {
+        this.townAsFilter = townAsFilter;
+    }
+
+    /**
+     * Sets the language of the records, for instance "nl", or null for all languages.
+     */
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    /**
+     * Sets the range of the (issue) dates of the records, as Solr dates like
+     * "1900-01-01T00:00:00Z". Either may be null for an open range.
+     */
+    public void setDateRange(String dateFrom, String dateTo) {
+        this.dateFrom = dateFrom;
+        this.dateTo = dateTo;
+    }
+
+    /**
+     * Sets the returned fields and the highlighted fields to those of the profile in the
+     * configuration (solrprofile.<i>name</i>.fl and solrprofile.<i>name</i>.hlfl). A field list
+     * that the profile doesn't have is left as it is.
+     */
+    public void setProfile(String profile) {
+        String profileFl = PropertyReader.getInstance().getSolrProfileFl(profile);
+        String profileHlfl = PropertyReader.getInstance().getSolrProfileHlfl(profile);
+        if (profileFl != null){
+            this.fl = profileFl;
+        }
+        if (profileHlfl != null){
+            this.hlfl = profileHlfl;
+        }
+    }
+
     public void setStreetName(String streetName) {
         this.streetName = streetName;
     }
@@ -112,10 +198,17 @@ public class SolrRequest {
         StringBuilder sb = new StringBuilder();
         sb.append("select?");
         try {
-            sb.append("fl=" + URLEncoder.encode(getFl(), "UTF-8") + "&");
-            sb.append("hl.fl=" + URLEncoder.encode(getHlfl(), "UTF-8") + "&");
-            sb.append("hl=" + URLEncoder.encode(getHl(), "UTF-8") + "&");
-            sb.append("indent=" + URLEncoder.encode(getIndent(), "UTF-8") + "&");
+            if (countOnly) {
+                sb.append("rows=0&");
+            } else {
+                sb.append("fl=" + URLEncoder.encode(getFl(), "UTF-8") + "&");
+                sb.append("hl.fl=" + URLEncoder.encode(getHlfl(), "UTF-8") + "&");
+                sb.append("hl=" + URLEncoder.encode(getHl(), "UTF-8") + "&");
+                sb.append("indent=" + URLEncoder.encode(getIndent(), "UTF-8") + "&");
+            }
+            for (String filterQuery : assembleFilterQueries()){
+                sb.append("fq=" + URLEncoder.encode(filterQuery, "UTF-8") + "&");
+            }
             sb.append("q=" + URLEncoder.encode(assembleQuery(), "UTF-8") + "&");
             sb.append("wt=" + URLEncoder.encode(getWt(), "UTF-8") + "&");
             return sb.toString();
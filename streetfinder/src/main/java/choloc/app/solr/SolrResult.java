@@ -1,37 +1,274 @@
 package choloc.app.solr;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * The number of records found and the highlights of a Solr response, for a grouped response the
+ * ids of the records per group, and the counts of the facet queries. The response is parsed as a
+ * stream: only these parts are kept, and everything else (like the other fields of the returned
+ * documents) is skipped without building it in memory.
+ */
 public class SolrResult {
 
+    private long numFound;
+    private List<Highlight> highlights;
+    private Map<String, Set<String>> groups;
+    private Map<String, Long> facetQueryCounts;
     private String jsonResult;
 
+    /**
+     * Parses the JSON response. A response that can't be parsed throws an
+     * {@link UncheckedIOException}.
+     */
     public SolrResult(String jsonResult){
+        try {
+            read(new StringReader(jsonResult));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not parse the Solr response.", e);
+        }
         this.jsonResult = jsonResult;
     }
 
+    private SolrResult(Reader reader) throws IOException {
+        read(reader);
+    }
+
+    /**
+     * Reads the response. A response with another structure than expected throws an
+     * {@link IOException}, like one that isn't JSON at all.
+     */
+    private void read(Reader reader) throws IOException {
+        try {
+            readResponse(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Unexpected Solr response.", e);
+        }
+    }
+
+    private void readResponse(Reader reader) throws IOException {
+        long numFound = 0;
+        List<Highlight> highlights = new ArrayList<>();
+        Map<String, Set<String>> groups = new LinkedHashMap<>();
+        Map<String, Long> facetQueryCounts = new LinkedHashMap<>();
+        JsonReader jsonReader = new JsonReader(reader);
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()){
+            String name = jsonReader.nextName();
+            if ("response".equals(name)){
+                numFound = readNumFound(jsonReader);
+            } else if ("highlighting".equals(name)){
+                readHighlighting(jsonReader, highlights);
+            } else if ("grouped".equals(name)){
+                readGroups(jsonReader, groups);
+            } else if ("facet_counts".equals(name)){
+                readFacetQueryCounts(jsonReader, facetQueryCounts);
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        this.numFound = numFound;
+        this.highlights = Collections.unmodifiableList(highlights);
+        this.groups = groups;
+        this.facetQueryCounts = facetQueryCounts;
+    }
+
+    /**
+     * Parses the JSON response while it is read, without copying it into a string first. The
+     * result has no {@link #getJsonResult() JSON string}.
+     */
+    public static SolrResult parse(Reader reader) throws IOException {
+        return new SolrResult(reader);
+    }
+
+    private static long readNumFound(JsonReader jsonReader) throws IOException {
+        long numFound = 0;
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()){
+            if ("numFound".equals(jsonReader.nextName())){
+                numFound = jsonReader.nextLong();
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        return numFound;
+    }
+
+    private static void readGroups(JsonReader jsonReader, Map<String, Set<String>> groups)
+            throws IOException {
+        String uniqueKey = PropertyReader.getInstance().getSolrUniqueKey();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()){
+            Set<String> ids = new HashSet<>();
+            groups.put(jsonReader.nextName(), ids);
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()){
+                if ("doclist".equals(jsonReader.nextName())){
+                    readIds(jsonReader, uniqueKey, ids);
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        }
+        jsonReader.endObject();
+    }
+
+    private static void readIds(JsonReader jsonReader, String uniqueKey, Set<String> ids)
+            throws IOException {
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()){
+            if (!"docs".equals(jsonReader.nextName())){
+                jsonReader.skipValue();
+                continue;
+            }
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()){
+                jsonReader.beginObject();
+                while (jsonReader.hasNext()){
+                    if (uniqueKey.equals(jsonReader.nextName())
+                            && jsonReader.peek() == JsonToken.STRING){
+                        ids.add(jsonReader.nextString());
+                    } else {
+                        jsonReader.skipValue();
+                    }
+                }
+                jsonReader.endObject();
+            }
+            jsonReader.endArray();
+        }
+        jsonReader.endObject();
+    }
+
+    private static void readFacetQueryCounts(JsonReader jsonReader, Map<String, Long> counts)
+            throws IOException {
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()){
+            if (!"facet_queries".equals(jsonReader.nextName())){
+                jsonReader.skipValue();
+                continue;
+            }
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()){
+                counts.put(jsonReader.nextName(), jsonReader.nextLong());
+            }
+            jsonReader.endObject();
+        }
+        jsonReader.endObject();
+    }
+
+    private static void readHighlighting(JsonReader jsonReader, List<Highlight> highlights)
+            throws IOException {
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()){
+            String europeanaId = jsonReader.nextName();
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()){
+                String field = jsonReader.nextName();
+                List<String> snippets = readSnippets(jsonReader);
+                if (!snippets.isEmpty()){
+                    highlights.add(new Highlight(europeanaId, field, snippets));
+                }
+            }
+            jsonReader.endObject();
+        }
+        jsonReader.endObject();
+    }
+
+    private static List<String> readSnippets(JsonReader jsonReader) throws IOException {
+        List<String> snippets = new ArrayList<>(1);
+        if (jsonReader.peek() == JsonToken.BEGIN_ARRAY){
+            jsonReader.beginArray();
+            while (jsonReader.hasNext()){
+                if (jsonReader.peek() == JsonToken.STRING){
+                    snippets.add(jsonReader.nextString());
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+            jsonReader.endArray();
+        } else if (jsonReader.peek() == JsonToken.STRING){
+            snippets.add(jsonReader.nextString());
+        } else {
+            jsonReader.skipValue();
+        }
+        return snippets;
+    }
+
+    /**
+     * Returns the JSON response, or null if it was parsed while it was read.
+     *
+     * @deprecated The parsed parts of the response are available from the other getters, and a
+     * response that is parsed while it is read is not kept.
+     */
+    @Deprecated
     public String getJsonResult() {
         return jsonResult;
     }
 
+    public long getNumFound() {
+        return numFound;
+    }
+
+    /**
+     * Returns the highlights with at least one snippet, in the order of the response.
+     */
+    public List<Highlight> getHighlights() {
+        return highlights;
+    }
+
+    /**
+     * Returns the highlights of the records in the group of a grouped response, or null if the
+     * response doesn't have the group.
+     */
+    public List<Highlight> getHighlights(String groupQuery){
+        Set<String> ids = groups.get(groupQuery);
+        if (ids == null){
+            return null;
+        }
+        List<Highlight> result = new ArrayList<>();
+        for (Highlight highlight : highlights){
+            if (ids.contains(highlight.getEuropeanaId())){
+                result.add(highlight);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of records that match the facet query, or null if the response doesn't
+     * have the facet query.
+     */
+    public Long getCount(String facetQuery){
+        return facetQueryCounts.get(facetQuery);
+    }
+
     public LinkedHashMap<String, String> parseJson(){
-        JsonObject jsonObject = new JsonParser().parse(getJsonResult()).getAsJsonObject();
+        System.out.println(numFound);
+        return toMap(highlights);
+    }
+
+    /**
+     * Returns the snippets of the highlights, keyed by the record id and the highlight field.
+     */
+    public static LinkedHashMap<String, String> toMap(List<Highlight> highlights){
         LinkedHashMap<String, String> results = new LinkedHashMap<>();
-        String europeanaId = "";
-
-        String numberFound = jsonObject.getAsJsonObject("response").getAsJsonPrimitive("numFound").getAsString();
-        System.out.println(numberFound);
-        for (Map.Entry<String, JsonElement> member : jsonObject.getAsJsonObject("highlighting").entrySet()){
-            europeanaId = member.getKey();
-            for (Map.Entry<String, JsonElement> hlLang : member.getValue().getAsJsonObject().entrySet()){
-                if (hlLang.getValue().toString().length() > 2) {
-                    results.put(europeanaId + " (" + hlLang.getKey() + ")", hlLang.getValue().getAsString());
-                }
-            }
+        for (Highlight highlight : highlights){
+            results.put(highlight.getEuropeanaId() + " (" + highlight.getField() + ")",
+                    String.join(" ... ", highlight.getSnippets()));
         }
         return results;
     }
@@ -0,0 +1,115 @@
+package choloc.app.streetfinder;
+
+import choloc.app.common.LruCache;
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Cache of area lookups on a fixed RD grid. The area layers are fetched without their geometry,
+ * so the areas of a query can't be divided over cells. Instead, the query is widened to the cells
+ * it covers and the result is cached for that block of cells: nearby queries of the same size
+ * mostly map onto the same block. Instances can be shared by any number of area finders.
+ */
+public class AreaCellCache {
+
+  private static final long BYTES_PER_RESULT = 64;
+  private static final long BYTES_PER_AREA = 96;
+
+  private final RdGrid grid;
+  private final LruCache<List<Integer>, Set<Area>> blocks;
+
+  /**
+   * Creates a cache with the given cell size, bounded by the (estimated) memory taken by the
+   * areas. A time to live of zero or less means that results don't expire.
+   */
+  public AreaCellCache(int cellSizeInMeters, long maxBytes, long timeToLiveMillis) {
+    this.grid = new RdGrid(cellSizeInMeters);
+    this.blocks = new LruCache<>(maxBytes, timeToLiveMillis, AreaCellCache::estimateBytes);
+  }
+
+  Set<Area> findAreas(BoundingBox boundingBox, AreaSource source)
+      throws IOException, XMLStreamException {
+    final Set<Area> result = new HashSet<>();
+    findAreas(boundingBox, source, null, result::add);
+    return result;
+  }
+
+  /**
+   * Passes the areas of the block of cells covering the bounding box to the consumer, fetching
+   * them until the deadline (if any) passes when they are not cached. Returns whether all areas
+   * were found; the block is cached only in that case.
+   */
+  boolean findAreas(BoundingBox boundingBox, AreaSource source, Deadline deadline,
+      Consumer<Area> consumer) throws IOException, XMLStreamException {
+    final int minColumn = grid.getColumn(boundingBox.getLowerLeft().x);
+    final int minRow = grid.getRow(boundingBox.getLowerLeft().y);
+    final int maxColumn = grid.getColumn(boundingBox.getUpperRight().x);
+    final int maxRow = grid.getRow(boundingBox.getUpperRight().y);
+    final List<Integer> block = Arrays.asList(minColumn, minRow, maxColumn, maxRow);
+    final Set<Area> cached = blocks.get(block);
+    if (cached != null) {
+      cached.forEach(consumer);
+      return true;
+    }
+    final Set<Area> fetched = Collections.synchronizedSet(new HashSet<>());
+    final boolean complete = source.findAreas(
+        grid.getBoundingBox(minColumn, minRow, maxColumn, maxRow), deadline, area -> {
+          fetched.add(area);
+          consumer.accept(area);
+        });
+    if (complete) {
+      synchronized (fetched) {
+        blocks.put(block, Collections.unmodifiableSet(new HashSet<>(fetched)));
+      }
+    }
+    return complete;
+  }
+
+  private static long estimateBytes(Set<Area> areas) {
+    long result = BYTES_PER_RESULT;
+    for (Area area : areas) {
+      result += BYTES_PER_AREA + 2L * (Objects.toString(area.getAreaName(), "").length()
+          + Objects.toString(area.getMunicipality(), "").length());
+    }
+    return result;
+  }
+
+  public long getHitCount() {
+    return blocks.getHitCount();
+  }
+
+  public long getMissCount() {
+    return blocks.getMissCount();
+  }
+
+  public long getEvictionCount() {
+    return blocks.getEvictionCount();
+  }
+
+  public long getEstimatedBytes() {
+    return blocks.getWeight();
+  }
+
+  public void clear() {
+    blocks.clear();
+  }
+
+  interface AreaSource {
+
+    /**
+     * Passes the areas in the bounding box to the consumer until the deadline, if any, passes.
+     * Returns whether all areas were found. With a deadline, the consumer may be called from
+     * several threads.
+     */
+    boolean findAreas(BoundingBox boundingBox, Deadline deadline, Consumer<Area> consumer)
+        throws IOException, XMLStreamException;
+  }
+}
@@ -1,23 +1,25 @@
 package choloc.app.streetfinder;
 
+import choloc.app.common.DaemonThreadFactory;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.operation.TransformException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 public class AreaFinder extends GeoManipulator {
 
@@ -50,74 +52,139 @@ public class AreaFinder extends GeoManipulator {
 
   private static final Pattern DISTRICT_PATTERN = Pattern.compile("^Wijk \\d+ (.*)$");
 
+  private static final int DEFAULT_FETCH_THREADS = 6;
+  private static ExecutorService defaultExecutor = null;
+
+  private final AreaCellCache cache;
+  private final ExecutorService executor;
+
   public AreaFinder() throws FactoryException {
+    this(null);
+  }
+
+  /**
+   * Creates an area finder that looks up areas in the given cache first. The cache widens
+   * queries to the cells of its grid.
+   */
+  public AreaFinder(AreaCellCache cache) throws FactoryException {
+    this(cache, null);
+  }
+
+  /**
+   * Creates an area finder that uses the given cache if not null. The area layers are fetched
+   * concurrently with the given executor, or with a shared default executor if it is null. The
+   * executor may be the one the lookups run on: a lookup runs the layers that the executor hasn't
+   * started yet on its own thread.
+   */
+  public AreaFinder(AreaCellCache cache, ExecutorService fetchExecutor)
+      throws FactoryException {
+    this.cache = cache;
+    this.executor = fetchExecutor == null ? getDefaultExecutor() : fetchExecutor;
+  }
+
+  private static synchronized ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newFixedThreadPool(DEFAULT_FETCH_THREADS,
+          new DaemonThreadFactory("wfs-areas"));
+    }
+    return defaultExecutor;
   }
 
   public Set<Area> findAreas(double lat, double lon,
       int searchSquareRadiusInMeters)
-      throws TransformException, IOException, ParserConfigurationException, SAXException {
+      throws TransformException, IOException, XMLStreamException {
 
     // Compute the bounding box
     final RdPoint here = convertToRd(new LatLon(lat, lon));
     final BoundingBox boundingBox = new BoundingBox(here, searchSquareRadiusInMeters);
 
-    // Obtain municipalities
-    final URL municipalityUrl = new URL(String
-        .format(MUNICIPALITY_URL_TEMPLATE, "" + boundingBox.getLowerLeft().x,
-            "" + boundingBox.getLowerLeft().y, "" + boundingBox.getUpperRight().x,
-            "" + boundingBox.getUpperRight().y));
-    final List<Area> municipalities = obtainWfsData(municipalityUrl,
-        AreaFinder::obtainMunicipalitiesFromDocument, UnaryOperator.identity());
+    // Obtain the areas.
+    if (cache == null) {
+      final Set<Area> result = new HashSet<>();
+      fetchAreas(boundingBox, null, result::add);
+      return result;
+    }
+    return cache.findAreas(boundingBox, this::fetchAreas);
+  }
 
-    // Obtain districts
-    final URL districtUrl = new URL(String
-        .format(DISTRICT_URL_TEMPLATE, "" + boundingBox.getLowerLeft().x,
-            "" + boundingBox.getLowerLeft().y, "" + boundingBox.getUpperRight().x,
-            "" + boundingBox.getUpperRight().y));
-    final List<Area> districts = obtainWfsData(districtUrl, AreaFinder::obtainDistrictsFromDocument,
-        UnaryOperator.identity());
+  /**
+   * Finds the areas like {@link #findAreas(double, double, int)}, but returns when the deadline
+   * passes with the areas that were found so far. The result says whether it is complete.
+   */
+  public PartialResult<Set<Area>> findAreas(double lat, double lon,
+      int searchSquareRadiusInMeters, Deadline deadline)
+      throws TransformException, IOException, XMLStreamException {
 
-    // Obtain neighborhoods
-    final URL neighborhoodUrl = new URL(String
-        .format(NEIGHBORHOOD_URL_TEMPLATE, "" + boundingBox.getLowerLeft().x,
-            "" + boundingBox.getLowerLeft().y, "" + boundingBox.getUpperRight().x,
-            "" + boundingBox.getUpperRight().y));
-    final List<Area> neighborhoods = obtainWfsData(neighborhoodUrl,
-        AreaFinder::obtainNeighborhoodsFromDocument, UnaryOperator.identity());
-
-    // Done
-    final HashSet<Area> result = new HashSet<>(municipalities);
-    result.addAll(districts);
-    result.addAll(neighborhoods);
-    return result;
+    // Compute the bounding box
+    final RdPoint here = convertToRd(new LatLon(lat, lon));
+    final BoundingBox boundingBox = new BoundingBox(here, searchSquareRadiusInMeters);
+
+    // Obtain the areas until the deadline.
+    final Set<Area> found = Collections.synchronizedSet(new HashSet<>());
+    final boolean complete = fetchBefore(deadline, () -> cache == null
+        ? fetchAreas(boundingBox, deadline, found::add)
+        : cache.findAreas(boundingBox, this::fetchAreas, deadline, found::add));
+    synchronized (found) {
+      return new PartialResult<>(new HashSet<>(found), complete);
+    }
   }
 
-  private static List<Area> obtainMunicipalitiesFromDocument(Document document) {
-    final NodeList nodeList = document.getElementsByTagName("wijkenbuurten2018:gemeenten2018");
-    return IntStream.range(0, nodeList.getLength()).mapToObj(index -> nodeList.item(index))
-        .map(node -> getChildNodeWithName(node, "wijkenbuurten2018:gemeentenaam"))
-        .map(Node::getTextContent).map(muni -> new Area(muni, muni)).collect(Collectors.toList());
+  /**
+   * Fetches the municipality, district and neighborhood layers concurrently, each with its own
+   * paging chain. Without a deadline, the areas of a layer are passed on when all layers are done;
+   * with a deadline, they are passed on as they come in, from the fetching threads.
+   */
+  private boolean fetchAreas(BoundingBox boundingBox, Deadline deadline,
+      Consumer<Area> consumer) throws IOException, XMLStreamException {
+    final List<Callable<List<Area>>> layers = new ArrayList<>();
+    layers.add(() -> fetchLayer(MUNICIPALITY_URL_TEMPLATE, "gemeenten2018",
+        AreaFinder::readMunicipality, boundingBox, deadline, consumer));
+    layers.add(() -> fetchLayer(DISTRICT_URL_TEMPLATE, "cbs_wijken_2018",
+        AreaFinder::readDistrict, boundingBox, deadline, consumer));
+    layers.add(() -> fetchLayer(NEIGHBORHOOD_URL_TEMPLATE, "cbs_buurten_2018",
+        AreaFinder::readNeighborhood, boundingBox, deadline, consumer));
+
+    // Merge the layers.
+    boolean complete = true;
+    for (List<Area> areas : fetchAll(executor, layers)) {
+      if (areas == null) {
+        complete = false;
+      } else if (deadline == null) {
+        areas.forEach(consumer);
+      }
+    }
+    return complete;
   }
 
-  private static List<Area> obtainDistrictsFromDocument(Document document) {
-    final NodeList nodeList = document.getElementsByTagName("wijkenbuurten2018:cbs_wijken_2018");
-    return IntStream.range(0, nodeList.getLength()).mapToObj(index -> nodeList.item(index))
-        .map(AreaFinder::createDistrict).filter(Objects::nonNull).collect(Collectors.toList());
+  /**
+   * Fetches all pages of one layer. Returns the areas, or null if the deadline passed first; with
+   * a deadline, the areas are passed to the consumer instead.
+   */
+  private static List<Area> fetchLayer(String urlTemplate, String featureName,
+      FeatureReader<Area> featureReader, BoundingBox boundingBox, Deadline deadline,
+      Consumer<Area> consumer) throws IOException, XMLStreamException {
+    final URL url = new URL(String
+        .format(urlTemplate, "" + boundingBox.getLowerLeft().x,
+            "" + boundingBox.getLowerLeft().y, "" + boundingBox.getUpperRight().x,
+            "" + boundingBox.getUpperRight().y));
+    final List<Area> result = new ArrayList<>();
+    final boolean complete = obtainWfsData(url, featureName, featureReader,
+        UnaryOperator.identity(), deadline, deadline == null ? result::add : consumer);
+    return complete ? result : null;
   }
 
-  private static List<Area> obtainNeighborhoodsFromDocument(Document document) {
-    final NodeList nodeList = document.getElementsByTagName("wijkenbuurten2018:cbs_buurten_2018");
-    return IntStream.range(0, nodeList.getLength()).mapToObj(index -> nodeList.item(index))
-        .map(AreaFinder::createNeighborhood).filter(Objects::nonNull).collect(Collectors.toList());
+  private static Area readMunicipality(XMLStreamReader reader) throws XMLStreamException {
+    final String municipality = readFeatureProperties(reader, "gemeentenaam").get("gemeentenaam");
+    return new Area(municipality, municipality);
   }
 
-  private static Area createDistrict(Node node) {
-    final Node municipality = getChildNodeWithName(node, "wijkenbuurten2018:gemeentenaam");
-    final Node district = getChildNodeWithName(node, "wijkenbuurten2018:wijknaam");
-    if (district == null) {
+  private static Area readDistrict(XMLStreamReader reader) throws XMLStreamException {
+    final Map<String, String> properties = readFeatureProperties(reader, "gemeentenaam",
+        "wijknaam");
+    final String rawDistrictName = properties.get("wijknaam");
+    if (rawDistrictName == null) {
       return null;
     }
-    final String rawDistrictName = district.getTextContent();
     final Matcher matcher  = DISTRICT_PATTERN.matcher(rawDistrictName);
     final String districtName;
     if (matcher.matches()) {
@@ -125,16 +192,17 @@ public class AreaFinder extends GeoManipulator {
     } else {
       districtName = rawDistrictName;
     }
-    return new Area(districtName, municipality.getTextContent());
+    return new Area(districtName, properties.get("gemeentenaam"));
   }
 
-  private static Area createNeighborhood(Node node) {
-    final Node municipality = getChildNodeWithName(node, "wijkenbuurten2018:gemeentenaam");
-    final Node neighborhood = getChildNodeWithName(node, "wijkenbuurten2018:buurtnaam");
+  private static Area readNeighborhood(XMLStreamReader reader) throws XMLStreamException {
+    final Map<String, String> properties = readFeatureProperties(reader, "gemeentenaam",
+        "buurtnaam");
+    final String neighborhood = properties.get("buurtnaam");
     if (neighborhood == null) {
       return null;
     }
-    return new Area(neighborhood.getTextContent(), municipality.getTextContent());
+    return new Area(neighborhood, properties.get("gemeentenaam"));
   }
 
   public static final void main(String[] args) throws Exception {
@@ -0,0 +1,178 @@
+package choloc.app.streetfinder;
+
+import choloc.app.common.DaemonThreadFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Process-wide registry of the transforms between WGS84 (EPSG:4326) and RD New (EPSG:28992). The
+ * transforms are created once and shared by all street and area finders, so that creating a
+ * finder is cheap. Creating them takes a while the first time, in particular when the EPSG
+ * database has to be started, so applications can warm the registry up in the background at
+ * startup.
+ */
+public final class CrsTransforms {
+
+  /**
+   * Where the coordinate reference systems are resolved.
+   */
+  public enum Source {
+
+    /**
+     * The EPSG database (gt-epsg-hsql), which is started the first time it is used.
+     */
+    EPSG_DATABASE,
+
+    /**
+     * The WKT definitions embedded in this class. Only the two codes we use are available, but
+     * the EPSG database is not started.
+     */
+    EMBEDDED_WKT,
+
+    /**
+     * No coordinate reference systems at all: the finders convert with the closed-form
+     * approximation of {@link RdNewTransform}, which is much faster but only valid within the
+     * Netherlands.
+     */
+    CLOSED_FORM
+  }
+
+  private static final String WGS84_WKT = "GEOGCS[\"WGS 84\","
+      + "DATUM[\"World Geodetic System 1984\","
+      + "SPHEROID[\"WGS 84\",6378137.0,298.257223563,AUTHORITY[\"EPSG\",\"7030\"]],"
+      + "AUTHORITY[\"EPSG\",\"6326\"]],"
+      + "PRIMEM[\"Greenwich\",0.0,AUTHORITY[\"EPSG\",\"8901\"]],"
+      + "UNIT[\"degree\",0.017453292519943295],"
+      + "AXIS[\"Geodetic latitude\",NORTH],"
+      + "AXIS[\"Geodetic longitude\",EAST],"
+      + "AUTHORITY[\"EPSG\",\"4326\"]]";
+
+  private static final String RD_NEW_WKT = "PROJCS[\"Amersfoort / RD New\","
+      + "GEOGCS[\"Amersfoort\","
+      + "DATUM[\"Amersfoort\","
+      + "SPHEROID[\"Bessel 1841\",6377397.155,299.1528128,AUTHORITY[\"EPSG\",\"7004\"]],"
+      + "TOWGS84[565.417,50.3319,465.552,-0.398957,0.343988,-1.8774,4.0725],"
+      + "AUTHORITY[\"EPSG\",\"6289\"]],"
+      + "PRIMEM[\"Greenwich\",0.0,AUTHORITY[\"EPSG\",\"8901\"]],"
+      + "UNIT[\"degree\",0.017453292519943295],"
+      + "AXIS[\"Geodetic latitude\",NORTH],"
+      + "AXIS[\"Geodetic longitude\",EAST],"
+      + "AUTHORITY[\"EPSG\",\"4289\"]],"
+      + "PROJECTION[\"Oblique_Stereographic\",AUTHORITY[\"EPSG\",\"9809\"]],"
+      + "PARAMETER[\"central_meridian\",5.38763888888889],"
+      + "PARAMETER[\"latitude_of_origin\",52.15616055555555],"
+      + "PARAMETER[\"scale_factor\",0.9999079],"
+      + "PARAMETER[\"false_easting\",155000.0],"
+      + "PARAMETER[\"false_northing\",463000.0],"
+      + "UNIT[\"m\",1.0],"
+      + "AXIS[\"Easting\",EAST],"
+      + "AXIS[\"Northing\",NORTH],"
+      + "AUTHORITY[\"EPSG\",\"28992\"]]";
+
+  private static Source source = Source.EPSG_DATABASE;
+  private static CompletableFuture<CrsTransforms> instance = null;
+
+  private final MathTransform latLonToRd;
+  private final MathTransform rdToLatLon;
+
+  private CrsTransforms(Source source) throws FactoryException {
+    if (source == Source.CLOSED_FORM) {
+      this.latLonToRd = null;
+      this.rdToLatLon = null;
+      return;
+    }
+    final CoordinateReferenceSystem wgs84;
+    final CoordinateReferenceSystem rdNew;
+    if (source == Source.EMBEDDED_WKT) {
+      wgs84 = CRS.parseWKT(WGS84_WKT);
+      rdNew = CRS.parseWKT(RD_NEW_WKT);
+    } else {
+      wgs84 = CRS.decode("EPSG:4326");
+      rdNew = CRS.decode("EPSG:28992");
+    }
+    this.latLonToRd = CRS.findMathTransform(wgs84, rdNew);
+    this.rdToLatLon = CRS.findMathTransform(rdNew, wgs84);
+  }
+
+  /**
+   * Sets where the coordinate reference systems are resolved. This can only be done before the
+   * transforms are first used or warmed up.
+   */
+  public static synchronized void setSource(Source source) {
+    if (instance != null && CrsTransforms.source != source) {
+      throw new IllegalStateException(
+          "Transforms are already initialized from " + CrsTransforms.source + ".");
+    }
+    CrsTransforms.source = source;
+  }
+
+  /**
+   * Starts creating the transforms in a background thread, if that hasn't started yet. Finders
+   * that are created in the meantime wait for it to finish.
+   */
+  public static void warmUpInBackground() {
+    final Thread thread = new DaemonThreadFactory("crs-warm-up").newThread(() -> {
+      try {
+        get();
+      } catch (FactoryException e) {
+        // Reported again to the first finder that needs the transforms.
+        e.printStackTrace();
+      }
+    });
+    thread.start();
+  }
+
+  /**
+   * Returns the shared transforms, creating them if that hasn't happened yet.
+   */
+  static CrsTransforms get() throws FactoryException {
+    final CompletableFuture<CrsTransforms> future;
+    final Source createFrom;
+    synchronized (CrsTransforms.class) {
+      createFrom = instance == null ? source : null;
+      if (createFrom != null) {
+        instance = new CompletableFuture<>();
+      }
+      future = instance;
+    }
+    if (createFrom != null) {
+      try {
+        future.complete(new CrsTransforms(createFrom));
+      } catch (FactoryException | RuntimeException e) {
+        future.completeExceptionally(e);
+
+        // Allow a later attempt.
+        synchronized (CrsTransforms.class) {
+          instance = null;
+        }
+      }
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FactoryException("Interrupted while creating the transforms.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof FactoryException) {
+        throw (FactoryException) e.getCause();
+      }
+      throw new FactoryException("Could not create the transforms.", e.getCause());
+    }
+  }
+
+  /**
+   * Returns the transform from WGS84 to RD New, or null if the finders should use the closed-form
+   * approximation.
+   */
+  MathTransform getLatLonToRd() {
+    return latLonToRd;
+  }
+
+  MathTransform getRdToLatLon() {
+    return rdToLatLon;
+  }
+}
@@ -0,0 +1,28 @@
+package choloc.app.streetfinder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which a lookup has to be answered. A deadline can be shared by several
+ * lookups that together have to fit in one time budget.
+ */
+public final class Deadline {
+
+  private final long deadlineNanos;
+
+  private Deadline(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  public static Deadline after(long timeoutMillis) {
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+  }
+
+  public boolean hasExpired() {
+    return System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  public long getRemainingMillis() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+  }
+}
@@ -1,93 +1,405 @@
 package choloc.app.streetfinder;
 
+import choloc.app.common.DaemonThreadFactory;
+import choloc.app.common.Hedger;
+import choloc.app.common.SingleFlight;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.function.Function;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
-import java.util.stream.IntStream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
 import org.locationtech.jts.geom.Coordinate;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 public abstract class GeoManipulator {
 
+  private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+  // Runs fetches with a deadline. Not bounded: a fetch that is given up on keeps its thread until
+  // its connection times out, which must not hold up new lookups.
+  private static final ExecutorService DEADLINE_EXECUTOR = Executors
+      .newCachedThreadPool(new DaemonThreadFactory("wfs-deadline"));
+
+  private static final SingleFlight<List<String>, Object> WFS_REQUESTS = new SingleFlight<>();
+
+  private static volatile WfsTransport wfsTransport = WfsHttpTransport.getInstance();
+
+  // Null if the closed-form approximation is used.
   private final MathTransform rdToLatLonConversion;
   private final MathTransform latLonToRdConversion;
 
   GeoManipulator() throws FactoryException {
-    latLonToRdConversion = CRS.findMathTransform(CRS.decode("EPSG:4326"), CRS.decode("EPSG:28992"));
-    rdToLatLonConversion = CRS.findMathTransform(CRS.decode("EPSG:28992"), CRS.decode("EPSG:4326"));
+    final CrsTransforms transforms = CrsTransforms.get();
+    latLonToRdConversion = transforms.getLatLonToRd();
+    rdToLatLonConversion = transforms.getRdToLatLon();
   }
 
   protected LatLon convertToLatLon(RdPoint rdPoint) throws TransformException {
+    if (rdToLatLonConversion == null) {
+      final double[] latLon = RdNewTransform.RD_TO_WGS84.transform(rdPoint.x, rdPoint.y);
+      return new LatLon(latLon[0], latLon[1]);
+    }
     final Coordinate coordinate = new Coordinate(rdPoint.x, rdPoint.y);
     JTS.transform(coordinate, coordinate, rdToLatLonConversion);
     return new LatLon(coordinate.x, coordinate.y);
   }
 
   protected RdPoint convertToRd(LatLon latLon) throws TransformException {
+    if (latLonToRdConversion == null) {
+      final double[] rd = RdNewTransform.WGS84_TO_RD.transform(latLon.lat, latLon.lon);
+      return new RdPoint(rd[0], rd[1]);
+    }
     final Coordinate coordinate = new Coordinate(latLon.lat, latLon.lon);
     JTS.transform(coordinate, coordinate, latLonToRdConversion);
     return new RdPoint(coordinate.x, coordinate.y);
   }
 
-  protected static <T> List<T> obtainWfsData(URL initialUrl,
-      Function<Document, List<T>> dataExtractor, UnaryOperator<String> nextUrlChecker)
-      throws ParserConfigurationException, IOException, SAXException {
+  /**
+   * Converts count RD points (interleaved x and y) to WGS84 points (interleaved lat and lon) in one
+   * go, which is much cheaper than converting them one by one. The arrays may be the same.
+   */
+  protected void convertToLatLon(double[] rdCoordinates, double[] latLonCoordinates, int count)
+      throws TransformException {
+    if (rdToLatLonConversion == null) {
+      RdNewTransform.RD_TO_WGS84.transform(rdCoordinates, latLonCoordinates, count);
+      return;
+    }
+    rdToLatLonConversion.transform(rdCoordinates, 0, latLonCoordinates, 0, count);
+  }
+
+  /**
+   * Converts count WGS84 points (interleaved lat and lon) to RD points (interleaved x and y) in one
+   * go. The arrays may be the same.
+   */
+  protected void convertToRd(double[] latLonCoordinates, double[] rdCoordinates, int count)
+      throws TransformException {
+    if (latLonToRdConversion == null) {
+      RdNewTransform.WGS84_TO_RD.transform(latLonCoordinates, rdCoordinates, count);
+      return;
+    }
+    latLonToRdConversion.transform(latLonCoordinates, 0, rdCoordinates, 0, count);
+  }
 
-    // Result
+  protected static <T> List<T> obtainWfsData(URL initialUrl, String featureName,
+      FeatureReader<T> featureReader, UnaryOperator<String> nextUrlChecker)
+      throws IOException, XMLStreamException {
     final List<T> results = new ArrayList<>();
+    obtainWfsData(initialUrl, featureName, featureReader, nextUrlChecker, null, results::add);
+    return results;
+  }
+
+  /**
+   * Obtains the features page by page, passing each to the consumer as soon as it is read. With
+   * a deadline, no new page is requested once it has passed and the connection times out when
+   * it passes. Returns whether all pages were read.
+   */
+  protected static <T> boolean obtainWfsData(URL initialUrl, String featureName,
+      FeatureReader<T> featureReader, UnaryOperator<String> nextUrlChecker, Deadline deadline,
+      Consumer<? super T> consumer) throws IOException, XMLStreamException {
+
+    // Without a deadline, identical requests that are in flight are coalesced.
+    if (deadline == null) {
+      final List<T> features = coalesce(Arrays.asList(initialUrl.toString(), featureName), () -> {
+        final List<T> result = new ArrayList<>();
+        readWfsPages(initialUrl, featureName, featureReader, nextUrlChecker, null, result::add);
+        return Collections.unmodifiableList(result);
+      });
+      features.forEach(consumer);
+      return true;
+    }
+    return readWfsPages(initialUrl, featureName, featureReader, nextUrlChecker, deadline,
+        consumer);
+  }
+
+  private static <T> boolean readWfsPages(URL initialUrl, String featureName,
+      FeatureReader<T> featureReader, UnaryOperator<String> nextUrlChecker, Deadline deadline,
+      Consumer<? super T> consumer) throws IOException, XMLStreamException {
 
     // Do this while we have a next batch
     URL currentUrl = initialUrl;
     while (true) {
 
-      // Obtain document
-      System.out.println("Sending request: " + currentUrl);
-      final Document document;
-      try (final InputStream inputStream = currentUrl.openStream()) {
-        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        final DocumentBuilder builder = factory.newDocumentBuilder();
-        document = builder.parse(inputStream);
+      // Stop if we ran out of time.
+      if (deadline != null && deadline.hasExpired()) {
+        return false;
       }
 
-      // Extract the streets
-      results.addAll(dataExtractor.apply(document));
+      // Read the features while the response comes in.
+      System.out.println("Sending request: " + currentUrl);
+      final String nextUrl;
+      try (final InputStream inputStream = openStream(currentUrl, deadline)) {
+        nextUrl = readWfsPage(inputStream, featureName, featureReader, consumer);
+      } catch (InterruptedIOException e) {
+        if (deadline != null && deadline.hasExpired()) {
+          return false;
+        }
+        throw e;
+      }
 
-      // Check whether there are more streets to find. If there aren't, we're done.
-      final Optional<String> nextUrl = Optional.of(document).map(Document::getFirstChild).map(
-          Node::getAttributes).map(node -> node.getNamedItem("next")).map(Node::getNodeValue);
-      if (!nextUrl.isPresent()) {
-        break;
+      // Check whether there are more features to find. If there aren't, we're done.
+      if (nextUrl == null) {
+        return true;
       }
 
       // Set current URL.
       // HACK: the URL returned by the server is not correct.
-      currentUrl = new URL(nextUrlChecker.apply(nextUrl.get()));
+      currentUrl = new URL(nextUrlChecker.apply(nextUrl));
     }
+  }
 
-    // Done
-    return results;
+  private static InputStream openStream(URL url, Deadline deadline) throws IOException {
+    return wfsTransport.open(url, deadline);
+  }
+
+  /**
+   * Runs a fetch in the background and waits for it until the deadline. If the deadline passes
+   * first, the fetch is cancelled and false is returned; otherwise the fetch's own result is
+   * returned. If the calling thread is interrupted, the fetch is cancelled too.
+   */
+  static boolean fetchBefore(Deadline deadline, Callable<Boolean> fetch)
+      throws IOException, XMLStreamException {
+    final Future<Boolean> future = DEADLINE_EXECUTOR.submit(fetch);
+    try {
+      future.get(deadline.getRemainingMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      return false;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof InterruptedIOException && deadline.hasExpired()) {
+        return false;
+      }
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for WFS data.");
+    }
+
+    // The fetch is done, so this doesn't wait.
+    return getFetchResult(future);
+  }
+
+  /**
+   * Asks the server how many features match a GetFeature request (the URL should have
+   * resultType=hits), timing out at the deadline if there is one. Returns -1 if the server
+   * doesn't say.
+   */
+  protected static long obtainWfsHitCount(URL url, Deadline deadline)
+      throws IOException, XMLStreamException {
+    if (deadline == null) {
+      return coalesce(Collections.singletonList(url.toString()), () -> readWfsHitCount(url, null));
+    }
+    return readWfsHitCount(url, deadline);
+  }
+
+  private static long readWfsHitCount(URL url, Deadline deadline)
+      throws IOException, XMLStreamException {
+    System.out.println("Sending request: " + url);
+    try (final InputStream inputStream = openStream(url, deadline)) {
+      final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+      try {
+        reader.nextTag();
+        final String numberMatched = reader.getAttributeValue(null, "numberMatched");
+        return numberMatched == null || "unknown".equals(numberMatched) ? -1
+            : Long.parseLong(numberMatched);
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Makes a WFS request, or waits for the identical request (same URL and feature name) that is
+   * in flight and shares its result. An identical request is read the same way by all callers.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T coalesce(List<String> request, Callable<T> call)
+      throws IOException, XMLStreamException {
+    try {
+      return (T) WFS_REQUESTS.execute(request, call);
+    } catch (IOException | XMLStreamException | RuntimeException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for WFS data.");
+    } catch (Exception e) {
+      throw new IOException("Could not obtain WFS data.", e);
+    }
+  }
+
+  /**
+   * Sets the transport for all WFS requests, or restores the default transport (to the server) if
+   * null. {@link #getLiveWfsTransport()} returns the default transport, for instance to record its
+   * responses.
+   */
+  public static void setWfsTransport(WfsTransport transport) {
+    wfsTransport = transport == null ? WfsHttpTransport.getInstance() : transport;
+  }
+
+  public static WfsTransport getLiveWfsTransport() {
+    return WfsHttpTransport.getInstance();
   }
 
-  protected static Node getChildNodeWithName(Node parent, String childName) {
-    final NodeList children = parent.getChildNodes();
-    return IntStream.range(0, children.getLength()).mapToObj(index -> children.item(index))
-        .filter(node -> node.getNodeName().equals(childName)).findFirst().orElse(null);
+  /**
+   * Sets the on-disk cache used for all WFS responses of the live transport, or removes it if
+   * null.
+   */
+  public static void setWfsResponseCache(WfsResponseCache responseCache) {
+    WfsHttpTransport.getInstance().setResponseCache(responseCache);
+  }
+
+  /**
+   * Sets the hedger used for all WFS requests of the live transport, or stops hedging if null.
+   * The hedger keeps the metrics.
+   */
+  public static void setWfsHedger(Hedger hedger) {
+    WfsHttpTransport.getInstance().setHedger(hedger);
+  }
+
+  /**
+   * Returns the number of WFS requests that were answered by an identical request in flight.
+   */
+  public static long getCoalescedWfsRequestCount() {
+    return WFS_REQUESTS.getCoalescedCount();
+  }
+
+  /**
+   * Runs the fetches concurrently with the executor and returns their results, in order. The
+   * calling thread runs the fetches that the executor hasn't started yet itself, so this can't
+   * deadlock when the executor is busy or when the calling thread is one of its threads. The
+   * fetches that are still running when this ends with an exception are cancelled.
+   */
+  static <T> List<T> fetchAll(ExecutorService executor, List<Callable<T>> fetches)
+      throws IOException, XMLStreamException {
+    final List<FutureTask<T>> tasks = new ArrayList<>(fetches.size());
+    try {
+      for (Callable<T> fetch : fetches) {
+        final FutureTask<T> task = new FutureTask<>(fetch);
+        tasks.add(task);
+        executor.execute(task);
+      }
+
+      // A task that was started by the executor ignores this.
+      for (FutureTask<T> task : tasks) {
+        task.run();
+      }
+      final List<T> results = new ArrayList<>(tasks.size());
+      for (FutureTask<T> task : tasks) {
+        results.add(getFetchResult(task));
+      }
+      return results;
+    } finally {
+      tasks.forEach(task -> task.cancel(true));
+    }
+  }
+
+  /**
+   * Waits for the result of a fetch that was submitted to an executor, passing on its exception.
+   */
+  static <T> T getFetchResult(Future<T> future) throws IOException, XMLStreamException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for WFS data.");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof XMLStreamException) {
+        throw (XMLStreamException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Could not obtain WFS data.", cause);
+    }
+  }
+
+  /**
+   * Reads one page of a GetFeature response, passing the features with the given (local) element
+   * name to the consumer. Returns the URL of the next page, or null if there is none.
+   */
+  static <T> String readWfsPage(InputStream inputStream, String featureName,
+      FeatureReader<T> featureReader, Consumer<? super T> consumer) throws XMLStreamException {
+    final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+    try {
+
+      // The link to the next page is an attribute of the root element.
+      reader.nextTag();
+      final String nextUrl = reader.getAttributeValue(null, "next");
+
+      // Read the features.
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT && featureName
+            .equals(reader.getLocalName())) {
+          final T feature = featureReader.readFeature(reader);
+          if (feature != null) {
+            consumer.accept(feature);
+          }
+        }
+      }
+      return nextUrl;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads the text of the given (local) property elements of the feature at which the reader is
+   * positioned, and leaves the reader at the end of the feature. Properties that don't occur are
+   * absent from the result; elements with other names are descended into.
+   */
+  protected static Map<String, String> readFeatureProperties(XMLStreamReader reader,
+      String... propertyNames) throws XMLStreamException {
+    final Map<String, String> result = new HashMap<>();
+    int depth = 1;
+    while (depth > 0) {
+      final int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        final String localName = reader.getLocalName();
+        if (Arrays.asList(propertyNames).contains(localName)) {
+          result.put(localName, reader.getElementText());
+        } else {
+          depth++;
+        }
+      }
+    }
+    return result;
+  }
+
+  @FunctionalInterface
+  protected interface FeatureReader<T> {
+
+    /**
+     * Reads the feature at whose start element the reader is positioned, up to and including its
+     * end element. Returns null if the feature is to be skipped.
+     */
+    T readFeature(XMLStreamReader reader) throws XMLStreamException;
   }
 
   public static class LatLon {
@@ -132,6 +444,11 @@ public abstract class GeoManipulator {
       upperRight = new RdPoint(center.x + offset, center.y + offset);
     }
 
+    BoundingBox(RdPoint lowerLeft, RdPoint upperRight) {
+      this.lowerLeft = lowerLeft;
+      this.upperRight = upperRight;
+    }
+
     public RdPoint getLowerLeft() {
       return lowerLeft;
     }
@@ -139,5 +456,71 @@ public abstract class GeoManipulator {
     public RdPoint getUpperRight() {
       return upperRight;
     }
+
+    boolean intersectsEnvelope(double minX, double minY, double maxX, double maxY) {
+      return minX <= upperRight.x && maxX >= lowerLeft.x && minY <= upperRight.y
+          && maxY >= lowerLeft.y;
+    }
+
+    boolean intersectsLine(double[] coordinates) {
+      if (coordinates.length == 2) {
+        return intersectsEnvelope(coordinates[0], coordinates[1], coordinates[0], coordinates[1]);
+      }
+      for (int i = 2; i < coordinates.length; i += 2) {
+        if (intersectsSegment(coordinates[i - 2], coordinates[i - 1], coordinates[i],
+            coordinates[i + 1])) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean intersectsSegment(double x1, double y1, double x2, double y2) {
+
+      // Clip the segment against the four sides (Liang-Barsky). Parameter t runs from 0 (point1)
+      // to 1 (point2); if the remaining interval becomes empty, the segment misses the box.
+      final double dx = x2 - x1;
+      final double dy = y2 - y1;
+      double tEnter = 0;
+      double tLeave = 1;
+      for (int side = 0; side < 4; side++) {
+        final double p;
+        final double q;
+        switch (side) {
+          case 0:
+            p = -dx;
+            q = x1 - lowerLeft.x;
+            break;
+          case 1:
+            p = dx;
+            q = upperRight.x - x1;
+            break;
+          case 2:
+            p = -dy;
+            q = y1 - lowerLeft.y;
+            break;
+          default:
+            p = dy;
+            q = upperRight.y - y1;
+            break;
+        }
+        if (p == 0) {
+          if (q < 0) {
+            return false;
+          }
+        } else {
+          final double t = q / p;
+          if (p < 0) {
+            tEnter = Math.max(tEnter, t);
+          } else {
+            tLeave = Math.min(tLeave, t);
+          }
+          if (tEnter > tLeave) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
   }
 }
@@ -0,0 +1,55 @@
+package choloc.app.streetfinder;
+
+class ParsedStreet {
+
+  private final String featureId;
+  private final StreetId streetId;
+  private final double[] coordinates;
+
+  ParsedStreet(String featureId, String street, String place, String municipality,
+      double[] coordinates) {
+    this(featureId, createStreetId(street, place, municipality), coordinates);
+  }
+
+  /**
+   * Creates a parsed street with the given geometry: a line string with the x and y of every
+   * point interleaved. The feature id (the gml:id of the wegvak) may be null if not known.
+   */
+  ParsedStreet(String featureId, StreetId streetId, double[] coordinates) {
+    if (coordinates.length == 0 || coordinates.length % 2 != 0) {
+      throw new IllegalArgumentException("Polygon is not valid.");
+    }
+    this.featureId = featureId;
+    this.streetId = streetId;
+    this.coordinates = coordinates;
+  }
+
+  private static StreetId createStreetId(String street, String place, String municipality) {
+    if (street == null || street.trim().isEmpty()) {
+      throw new IllegalArgumentException("Street is not valid.");
+    }
+    if (place == null || place.trim().isEmpty()) {
+      throw new IllegalArgumentException("Place is not valid.");
+    }
+    if (municipality == null || municipality.trim().isEmpty()) {
+      throw new IllegalArgumentException("Municipality is not valid.");
+    }
+    return new StreetId(street, place, municipality);
+  }
+
+  public String getFeatureId() {
+    return featureId;
+  }
+
+  public StreetId getStreetId() {
+    return streetId;
+  }
+
+  public double[] getCoordinates() {
+    return coordinates;
+  }
+
+  public int getPointCount() {
+    return coordinates.length / 2;
+  }
+}
@@ -0,0 +1,24 @@
+package choloc.app.streetfinder;
+
+/**
+ * Result of a lookup with a deadline: if the deadline passed before all data was obtained, the
+ * result holds what was found so far and is marked incomplete.
+ */
+public class PartialResult<T> {
+
+  private final T result;
+  private final boolean complete;
+
+  public PartialResult(T result, boolean complete) {
+    this.result = result;
+    this.complete = complete;
+  }
+
+  public T getResult() {
+    return result;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+}
@@ -0,0 +1,99 @@
+package choloc.app.streetfinder;
+
+import java.util.Arrays;
+
+/**
+ * Parses a GML posList (whitespace separated coordinates) into an array with x and y interleaved.
+ *
+ * <p>Numbers are scanned by hand. Whenever the decimal mantissa and the power of ten are both
+ * exactly representable as doubles, which holds for any RD coordinate with up to 15 significant
+ * digits, a single division or multiplication gives the correctly rounded value. Anything else is
+ * left to {@link Double#parseDouble(String)}, so the result is always the same as the latter.
+ */
+final class PosListParser {
+
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+      1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  private PosListParser() {
+  }
+
+  static double[] parse(CharSequence posList) {
+    double[] result = new double[Math.max(2, posList.length() / 8)];
+    int count = 0;
+    final int length = posList.length();
+    int position = 0;
+    while (true) {
+
+      // Skip whitespace
+      while (position < length && Character.isWhitespace(posList.charAt(position))) {
+        position++;
+      }
+      if (position == length) {
+        break;
+      }
+
+      // Find the end of the number and parse it.
+      final int start = position;
+      while (position < length && !Character.isWhitespace(posList.charAt(position))) {
+        position++;
+      }
+      if (count == result.length) {
+        result = Arrays.copyOf(result, count * 2);
+      }
+      result[count] = parseNumber(posList, start, position);
+      count++;
+    }
+    if (count == 0 || count % 2 != 0) {
+      throw new IllegalArgumentException("Position list is not valid.");
+    }
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+
+  private static double parseNumber(CharSequence text, int start, int end) {
+
+    // Sign
+    int position = start;
+    final boolean negative = text.charAt(position) == '-';
+    if (negative || text.charAt(position) == '+') {
+      position++;
+    }
+
+    // Digits with an optional decimal point.
+    long mantissa = 0;
+    int digitCount = 0;
+    int fractionDigits = 0;
+    boolean inFraction = false;
+    for (; position < end; position++) {
+      final char character = text.charAt(position);
+      if (character >= '0' && character <= '9') {
+        mantissa = mantissa * 10 + (character - '0');
+        digitCount++;
+        if (inFraction) {
+          fractionDigits++;
+        }
+        if (mantissa >= MAX_EXACT_MANTISSA) {
+          return parseSlow(text, start, end);
+        }
+      } else if (character == '.' && !inFraction) {
+        inFraction = true;
+      } else {
+        // Exponents, NaN, infinity and invalid input
+        return parseSlow(text, start, end);
+      }
+    }
+    if (digitCount == 0 || fractionDigits >= POWERS_OF_TEN.length) {
+      return parseSlow(text, start, end);
+    }
+
+    // Both operands are exact, so the division is correctly rounded.
+    final double value = mantissa / POWERS_OF_TEN[fractionDigits];
+    return negative ? -value : value;
+  }
+
+  private static double parseSlow(CharSequence text, int start, int end) {
+    return Double.parseDouble(text.subSequence(start, end).toString());
+  }
+}
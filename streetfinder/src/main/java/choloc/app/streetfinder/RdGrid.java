@@ -0,0 +1,45 @@
+package choloc.app.streetfinder;
+
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import choloc.app.streetfinder.GeoManipulator.RdPoint;
+
+/**
+ * Fixed grid of square cells over RD coordinates, with the origin of RD as a cell corner. Cells
+ * are identified by a long combining column and row.
+ */
+class RdGrid {
+
+  private final double cellSize;
+
+  RdGrid(double cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size is not valid.");
+    }
+    this.cellSize = cellSize;
+  }
+
+  int getColumn(double x) {
+    return (int) Math.floor(x / cellSize);
+  }
+
+  int getRow(double y) {
+    return (int) Math.floor(y / cellSize);
+  }
+
+  static long getCell(int column, int row) {
+    return ((long) column << 32) | (row & 0xFFFFFFFFL);
+  }
+
+  static int getColumn(long cell) {
+    return (int) (cell >> 32);
+  }
+
+  static int getRow(long cell) {
+    return (int) cell;
+  }
+
+  BoundingBox getBoundingBox(int minColumn, int minRow, int maxColumn, int maxRow) {
+    return new BoundingBox(new RdPoint(minColumn * cellSize, minRow * cellSize),
+        new RdPoint((maxColumn + 1) * cellSize, (maxRow + 1) * cellSize));
+  }
+}
@@ -0,0 +1,114 @@
+package choloc.app.streetfinder;
+
+/**
+ * Conversion between RD New (EPSG:28992) and WGS84 (EPSG:4326) with the polynomial approximation
+ * published by Schreutelkamp and Strang van Hees ("Benaderingsformules voor de transformatie
+ * tussen RD- en WGS84-kaartcoördinaten"). The approximation was compared with a hand
+ * evaluation, outside GeoTools, of the operation chain that the {@link
+ * CrsTransforms.Source#EMBEDDED_WKT} definitions describe (the TOWGS84 datum shift, Bessel 1841
+ * and the oblique stereographic projection). On a 2.5 km grid over x 0-300 km, y 300-625 km they
+ * differ by at most 0.31 m in both directions, almost a constant offset (0.30 m at the origin).
+ * The transforms that GeoTools itself creates were not measured, and the EPSG database (the
+ * default source) may choose another datum shift than the embedded WKT. The polynomial and the
+ * datum shifts are all approximations of the official RDNAPTRANS transformation; differences of
+ * this size are well below the resolution of street distances, which are rounded to meters.
+ * Outside the Netherlands the approximation quickly becomes useless. Finders use it when {@link
+ * CrsTransforms.Source#CLOSED_FORM} is selected.
+ *
+ * <p>The conversion needs no allocations and no lookups, which makes it much faster than going
+ * through GeoTools, in particular for the bulk methods. WGS84 coordinates are in (lat, lon) order,
+ * RD coordinates in (x, y) order, both as interleaved pairs.
+ */
+public abstract class RdNewTransform {
+
+  private static final double X0 = 155000;
+  private static final double Y0 = 463000;
+  private static final double PHI0 = 52.15517440;
+  private static final double LAM0 = 5.38720621;
+
+  /**
+   * Converts RD coordinates to WGS84 coordinates.
+   */
+  public static final RdNewTransform RD_TO_WGS84 = new RdNewTransform() {
+    @Override
+    void transformPoint(double x, double y, double[] dst, int dstOffset) {
+      final double dx = (x - X0) * 1e-5;
+      final double dy = (y - Y0) * 1e-5;
+      final double dx2 = dx * dx;
+      final double dx3 = dx2 * dx;
+      final double dx4 = dx3 * dx;
+      final double dy2 = dy * dy;
+      final double dy3 = dy2 * dy;
+      final double dy4 = dy3 * dy;
+      final double phi = 3235.65389 * dy - 32.58297 * dx2 - 0.24750 * dy2
+          - 0.84978 * dx2 * dy - 0.06550 * dy3 - 0.01709 * dx2 * dy2 - 0.00738 * dx
+          + 0.00530 * dx4 - 0.00039 * dx2 * dy3 + 0.00033 * dx4 * dy - 0.00012 * dx * dy;
+      final double lam = 5260.52916 * dx + 105.94684 * dx * dy + 2.45656 * dx * dy2
+          - 0.81885 * dx3 + 0.05594 * dx * dy3 - 0.05607 * dx3 * dy + 0.01199 * dy
+          - 0.00256 * dx3 * dy2 + 0.00128 * dx * dy4 + 0.00022 * dy2 - 0.00022 * dx2
+          + 0.00026 * dx4 * dx;
+      dst[dstOffset] = PHI0 + phi / 3600;
+      dst[dstOffset + 1] = LAM0 + lam / 3600;
+    }
+  };
+
+  /**
+   * Converts WGS84 coordinates to RD coordinates.
+   */
+  public static final RdNewTransform WGS84_TO_RD = new RdNewTransform() {
+    @Override
+    void transformPoint(double lat, double lon, double[] dst, int dstOffset) {
+      final double dphi = 0.36 * (lat - PHI0);
+      final double dlam = 0.36 * (lon - LAM0);
+      final double dphi2 = dphi * dphi;
+      final double dphi3 = dphi2 * dphi;
+      final double dlam2 = dlam * dlam;
+      final double dlam3 = dlam2 * dlam;
+      final double dlam4 = dlam3 * dlam;
+      final double x = 190094.945 * dlam - 11832.228 * dphi * dlam - 114.221 * dphi2 * dlam
+          - 32.391 * dlam3 - 0.705 * dphi - 2.340 * dphi3 * dlam - 0.608 * dphi * dlam3
+          - 0.008 * dlam2 + 0.148 * dphi2 * dlam3;
+      final double y = 309056.544 * dphi + 3638.893 * dlam2 + 73.077 * dphi2
+          - 157.984 * dphi * dlam2 + 59.788 * dphi3 + 0.433 * dlam - 6.439 * dphi2 * dlam2
+          - 0.032 * dphi * dlam + 0.092 * dlam4 - 0.054 * dphi * dlam4;
+      dst[dstOffset] = X0 + x;
+      dst[dstOffset + 1] = Y0 + y;
+    }
+  };
+
+  private RdNewTransform() {
+  }
+
+  abstract void transformPoint(double first, double second, double[] dst, int dstOffset);
+
+  /**
+   * Converts a single point, returning the two converted coordinates.
+   */
+  public double[] transform(double first, double second) {
+    final double[] result = new double[2];
+    transformPoint(first, second, result, 0);
+    return result;
+  }
+
+  /**
+   * Converts the first count points of the source array into the destination array. The arrays
+   * may be the same.
+   */
+  public void transform(double[] src, double[] dst, int count) {
+    transform(src, 0, dst, 0, count);
+  }
+
+  /**
+   * Converts count points, starting at the given offsets (in coordinates, not points). The arrays
+   * may be the same, as long as the destination doesn't start after the source.
+   */
+  public void transform(double[] src, int srcOffset, double[] dst, int dstOffset, int count) {
+    if (count < 0 || srcOffset < 0 || dstOffset < 0 || srcOffset + 2 * count > src.length
+        || dstOffset + 2 * count > dst.length) {
+      throw new IndexOutOfBoundsException("Points are not within the arrays.");
+    }
+    for (int i = 0; i < count; i++) {
+      transformPoint(src[srcOffset + 2 * i], src[srcOffset + 2 * i + 1], dst, dstOffset + 2 * i);
+    }
+  }
+}
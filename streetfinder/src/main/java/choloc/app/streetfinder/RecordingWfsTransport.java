@@ -0,0 +1,108 @@
+package choloc.app.streetfinder;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Transport that passes requests on to another transport and saves the responses, so that they
+ * can be replayed with {@link ReplayWfsTransport}. Every response is saved as it is read, in a
+ * GML file named after the URL (see {@link WfsResponseCache#normalize(URL)}), next to a text file
+ * with the URL itself. Responses that are not read completely are not saved.
+ */
+public class RecordingWfsTransport implements WfsTransport {
+
+  static final String BODY_SUFFIX = ".gml";
+  static final String URL_SUFFIX = ".url";
+
+  private final WfsTransport transport;
+  private final Path directory;
+
+  public RecordingWfsTransport(WfsTransport transport, Path directory) throws IOException {
+    this.transport = transport;
+    this.directory = directory;
+    Files.createDirectories(directory);
+  }
+
+  @Override
+  public InputStream open(URL url, Deadline deadline) throws IOException {
+    final String key = WfsResponseCache.getKey(url);
+    final Path temporaryFile = Files.createTempFile(directory, key, BODY_SUFFIX + ".tmp");
+    final OutputStream output = Files.newOutputStream(temporaryFile);
+    final InputStream body;
+    try {
+      body = transport.open(url, deadline);
+    } catch (IOException | RuntimeException e) {
+      output.close();
+      Files.deleteIfExists(temporaryFile);
+      throw e;
+    }
+    return new FilterInputStream(body) {
+
+      private boolean complete = false;
+
+      @Override
+      public int read() throws IOException {
+        final byte[] buffer = new byte[1];
+        final int length = read(buffer, 0, 1);
+        return length < 0 ? -1 : buffer[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        final int result = super.read(buffer, offset, length);
+        if (result < 0) {
+          complete = true;
+        } else {
+          output.write(buffer, offset, result);
+        }
+        return result;
+      }
+
+      @Override
+      public long skip(long length) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(length, 8192)];
+        return Math.max(read(buffer, 0, buffer.length), 0);
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+
+          // The parser may stop before the end of the body: read the rest for the recording.
+          if (deadline == null || !deadline.hasExpired()) {
+            final byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) >= 0) {
+              // Keep reading
+            }
+          }
+          output.close();
+          if (complete) {
+            Files.write(directory.resolve(key + URL_SUFFIX),
+                url.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, directory.resolve(key + BODY_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          }
+        } finally {
+          try {
+            super.close();
+          } finally {
+            output.close();
+            Files.deleteIfExists(temporaryFile);
+          }
+        }
+      }
+    };
+  }
+}
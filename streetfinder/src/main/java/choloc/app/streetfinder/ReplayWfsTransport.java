@@ -0,0 +1,64 @@
+package choloc.app.streetfinder;
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Transport that serves the responses recorded by {@link RecordingWfsTransport}, without
+ * contacting the server. Every response can be delayed by a latency with a uniformly distributed
+ * jitter, to mimic the latencies of the server; a response that would come in after the deadline
+ * times out instead. Requests that were not recorded fail.
+ */
+public class ReplayWfsTransport implements WfsTransport {
+
+  private final Path directory;
+  private final long latencyMillis;
+  private final long jitterMillis;
+
+  public ReplayWfsTransport(Path directory) {
+    this(directory, 0, 0);
+  }
+
+  /**
+   * Creates a transport that delays every response by the latency plus or minus at most the
+   * jitter.
+   */
+  public ReplayWfsTransport(Path directory, long latencyMillis, long jitterMillis) {
+    this.directory = directory;
+    this.latencyMillis = latencyMillis;
+    this.jitterMillis = jitterMillis;
+  }
+
+  @Override
+  public InputStream open(URL url, Deadline deadline) throws IOException {
+    final Path body = directory
+        .resolve(WfsResponseCache.getKey(url) + RecordingWfsTransport.BODY_SUFFIX);
+    if (!Files.exists(body)) {
+      throw new FileNotFoundException("No recorded WFS response for URL: " + url);
+    }
+
+    // Wait for the response to come in.
+    final long jitter = jitterMillis <= 0 ? 0
+        : ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1);
+    final long delay = Math.max(0, latencyMillis + jitter);
+    final boolean timesOut = deadline != null && delay >= deadline.getRemainingMillis();
+    try {
+      Thread.sleep(timesOut ? deadline.getRemainingMillis() : delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for WFS data.");
+    }
+    if (timesOut) {
+      throw new SocketTimeoutException("Read timed out");
+    }
+    return new BufferedInputStream(Files.newInputStream(body));
+  }
+}
@@ -0,0 +1,438 @@
+package choloc.app.streetfinder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packed R-tree over the line segments of a set of parsed streets, bulk loaded with the
+ * Sort-Tile-Recursive algorithm. The index answers nearest point queries per street: streets are
+ * visited in order of increasing distance, each with its nearest point, and subtrees that can't
+ * contain anything closer are not expanded.
+ *
+ * <p>Ties are resolved on the order in which the segments were supplied, so that the nearest
+ * point of a street is the first one a linear scan over its segments would have found.
+ */
+class SegmentIndex {
+
+  private static final int NODE_CAPACITY = 16;
+
+  private final StreetId[] streetIds;
+  private final int[] featureStreets;
+
+  // Segments (in tree order): street, feature, original order and end points x1, y1, x2, y2.
+  private final int[] segmentStreets;
+  private final int[] segmentFeatures;
+  private final int[] segmentOrders;
+  private final double[] segmentCoordinates;
+
+  // Nodes: bounding box, first child, child count and lowest segment order in the subtree. Nodes
+  // below leafNodeCount have segments as children, the others have nodes as children.
+  private final double[] nodeBoxes;
+  private final int[] nodeFirstChildren;
+  private final int[] nodeChildCounts;
+  private final int[] nodeOrders;
+  private final int leafNodeCount;
+  private final int root;
+
+  SegmentIndex(List<ParsedStreet> parsedStreets) {
+
+    // Collect the segments and the distinct streets, in order of appearance. A street with a
+    // single point is represented by a segment of length 0.
+    final Map<StreetId, Integer> streetOrdinals = new HashMap<>();
+    int segmentCount = 0;
+    for (ParsedStreet parsedStreet : parsedStreets) {
+      streetOrdinals.putIfAbsent(parsedStreet.getStreetId(), streetOrdinals.size());
+      segmentCount += Math.max(1, parsedStreet.getPointCount() - 1);
+    }
+    streetIds = new StreetId[streetOrdinals.size()];
+    streetOrdinals.forEach((streetId, ordinal) -> streetIds[ordinal] = streetId);
+    featureStreets = new int[parsedStreets.size()];
+    final int[] streets = new int[segmentCount];
+    final int[] features = new int[segmentCount];
+    final double[] coordinates = new double[segmentCount * 4];
+    int segment = 0;
+    for (int feature = 0; feature < parsedStreets.size(); feature++) {
+      final ParsedStreet parsedStreet = parsedStreets.get(feature);
+      final int street = streetOrdinals.get(parsedStreet.getStreetId());
+      featureStreets[feature] = street;
+      final double[] points = parsedStreet.getCoordinates();
+      for (int i = Math.min(2, points.length - 2); i < points.length; i += 2) {
+        final int previous = Math.max(0, i - 2);
+        streets[segment] = street;
+        features[segment] = feature;
+        coordinates[segment * 4] = points[previous];
+        coordinates[segment * 4 + 1] = points[previous + 1];
+        coordinates[segment * 4 + 2] = points[i];
+        coordinates[segment * 4 + 3] = points[i + 1];
+        segment++;
+      }
+    }
+
+    // Pack the segments into leaf nodes and store them in tree order.
+    final double[] segmentBoxes = new double[segmentCount * 4];
+    final int[] orders = new int[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segmentBoxes[i * 4] = Math.min(coordinates[i * 4], coordinates[i * 4 + 2]);
+      segmentBoxes[i * 4 + 1] = Math.min(coordinates[i * 4 + 1], coordinates[i * 4 + 3]);
+      segmentBoxes[i * 4 + 2] = Math.max(coordinates[i * 4], coordinates[i * 4 + 2]);
+      segmentBoxes[i * 4 + 3] = Math.max(coordinates[i * 4 + 1], coordinates[i * 4 + 3]);
+      orders[i] = i;
+    }
+    final int[] segmentPermutation = sortTileRecursive(segmentBoxes, segmentCount);
+    segmentStreets = new int[segmentCount];
+    segmentFeatures = new int[segmentCount];
+    segmentOrders = new int[segmentCount];
+    segmentCoordinates = new double[segmentCount * 4];
+    for (int i = 0; i < segmentCount; i++) {
+      final int source = segmentPermutation[i];
+      segmentStreets[i] = streets[source];
+      segmentFeatures[i] = features[source];
+      segmentOrders[i] = orders[source];
+      System.arraycopy(coordinates, source * 4, segmentCoordinates, i * 4, 4);
+    }
+
+    // Build the tree level by level: each level packs the entries of the level below.
+    final int maxNodeCount = segmentCount / (NODE_CAPACITY - 1) + 32;
+    final double[] boxes = new double[maxNodeCount * 4];
+    final int[] firstChildren = new int[maxNodeCount];
+    final int[] childCounts = new int[maxNodeCount];
+    final int[] minOrders = new int[maxNodeCount];
+    int levelStart = 0;
+    int levelCount = packLevel(permute(segmentBoxes, segmentPermutation), segmentOrders,
+        segmentCount, 0, boxes, firstChildren, childCounts, minOrders, 0);
+    leafNodeCount = levelCount;
+    while (levelCount > 1) {
+
+      // Order the nodes of this level and pack them into the next level.
+      final double[] levelBoxes = Arrays.copyOfRange(boxes, levelStart * 4,
+          (levelStart + levelCount) * 4);
+      final int[] permutation = sortTileRecursive(levelBoxes, levelCount);
+      reorderNodes(permutation, levelStart, boxes, firstChildren, childCounts, minOrders);
+      final int[] levelOrders = Arrays.copyOfRange(minOrders, levelStart, levelStart + levelCount);
+      final int nextLevelStart = levelStart + levelCount;
+      final int nextLevelCount = packLevel(
+          Arrays.copyOfRange(boxes, levelStart * 4, nextLevelStart * 4), levelOrders, levelCount,
+          levelStart, boxes, firstChildren, childCounts, minOrders, nextLevelStart);
+      levelStart = nextLevelStart;
+      levelCount = nextLevelCount;
+    }
+    root = levelCount == 1 ? levelStart : -1;
+    nodeBoxes = Arrays.copyOf(boxes, (levelStart + levelCount) * 4);
+    nodeFirstChildren = Arrays.copyOf(firstChildren, levelStart + levelCount);
+    nodeChildCounts = Arrays.copyOf(childCounts, levelStart + levelCount);
+    nodeOrders = Arrays.copyOf(minOrders, levelStart + levelCount);
+  }
+
+  int getStreetCount() {
+    return streetIds.length;
+  }
+
+  StreetId getStreetId(int street) {
+    return streetIds[street];
+  }
+
+  int getFeatureCount() {
+    return featureStreets.length;
+  }
+
+  /**
+   * Returns the street of a feature, where features are numbered in the order in which they were
+   * supplied.
+   */
+  int getStreetOfFeature(int feature) {
+    return featureStreets[feature];
+  }
+
+  void visitNearestStreets(double x, double y, double maxDistance, StreetVisitor visitor) {
+    visitNearestStreets(x, y, maxDistance, null, visitor);
+  }
+
+  /**
+   * Visits the streets in order of increasing distance to (x, y), each once with its nearest
+   * point. The search ends when the visitor returns false, when all streets have been visited or
+   * when the remaining streets are further away than the maximum distance. If a feature filter is
+   * given, only the segments of the features for which it is true are considered.
+   */
+  void visitNearestStreets(double x, double y, double maxDistance, boolean[] featureFilter,
+      StreetVisitor visitor) {
+    if (root < 0) {
+      return;
+    }
+    final boolean[] visited = new boolean[streetIds.length];
+    int visitedCount = 0;
+    final EntryQueue queue = new EntryQueue();
+    queue.add(boxDistance(root, x, y), nodeOrders[root], root);
+    while (!queue.isEmpty() && queue.peekDistance() <= maxDistance) {
+      final double distance = queue.peekDistance();
+      final int entry = queue.poll();
+
+      // A segment: this is the nearest point for its street if the street wasn't visited before.
+      if (entry < 0) {
+        final int segment = ~entry;
+        final int street = segmentStreets[segment];
+        if (visited[street]) {
+          continue;
+        }
+        visited[street] = true;
+        visitedCount++;
+        final double scalar = getNearestScalar(segment, x, y);
+        if (!visitor.visit(street, getX(segment, scalar), getY(segment, scalar), distance)
+            || visitedCount == streetIds.length) {
+          return;
+        }
+        continue;
+      }
+
+      // A node: add its children.
+      final int firstChild = nodeFirstChildren[entry];
+      final int childCount = nodeChildCounts[entry];
+      for (int child = firstChild; child < firstChild + childCount; child++) {
+        if (entry < leafNodeCount) {
+          if (!visited[segmentStreets[child]] && (featureFilter == null
+              || featureFilter[segmentFeatures[child]])) {
+            final double scalar = getNearestScalar(child, x, y);
+            queue.add(distance(getX(child, scalar), getY(child, scalar), x, y),
+                segmentOrders[child], ~child);
+          }
+        } else {
+          queue.add(boxDistance(child, x, y), nodeOrders[child], child);
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the position of the point on the segment nearest to (x, y), as a scalar from 0
+   * (first end point) to 1 (second end point).
+   */
+  private double getNearestScalar(int segment, double x, double y) {
+    final double x1 = segmentCoordinates[segment * 4];
+    final double y1 = segmentCoordinates[segment * 4 + 1];
+
+    // In case the segment has length 0, we don't have a direction.
+    final double segmentX = segmentCoordinates[segment * 4 + 2] - x1;
+    final double segmentY = segmentCoordinates[segment * 4 + 3] - y1;
+    final double segmentLengthSquared = segmentX * segmentX + segmentY * segmentY;
+    if (segmentLengthSquared == 0.0) {
+      return 0;
+    }
+
+    // Project (here - point1) on the segment and clamp the scalar to the segment.
+    final double dotProduct = segmentX * (x - x1) + segmentY * (y - y1);
+    return Math.max(0, Math.min(1, dotProduct / segmentLengthSquared));
+  }
+
+  private double getX(int segment, double scalar) {
+    final double x1 = segmentCoordinates[segment * 4];
+    return x1 + scalar * (segmentCoordinates[segment * 4 + 2] - x1);
+  }
+
+  private double getY(int segment, double scalar) {
+    final double y1 = segmentCoordinates[segment * 4 + 1];
+    return y1 + scalar * (segmentCoordinates[segment * 4 + 3] - y1);
+  }
+
+  private double boxDistance(int node, double x, double y) {
+    final double dx = Math.max(0, Math.max(nodeBoxes[node * 4] - x, x - nodeBoxes[node * 4 + 2]));
+    final double dy = Math.max(0,
+        Math.max(nodeBoxes[node * 4 + 1] - y, y - nodeBoxes[node * 4 + 3]));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  private static double distance(double x1, double y1, double x2, double y2) {
+    final double diffX = x1 - x2;
+    final double diffY = y1 - y2;
+    return Math.sqrt(diffX * diffX + diffY * diffY);
+  }
+
+  /**
+   * Packs consecutive runs of entries (already in tree order) into nodes starting at the given
+   * node index, and returns the number of nodes created.
+   */
+  private static int packLevel(double[] entryBoxes, int[] entryOrders, int entryCount,
+      int firstEntry, double[] boxes, int[] firstChildren, int[] childCounts, int[] minOrders,
+      int firstNode) {
+    int node = firstNode;
+    for (int start = 0; start < entryCount; start += NODE_CAPACITY) {
+      final int end = Math.min(entryCount, start + NODE_CAPACITY);
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      int minOrder = Integer.MAX_VALUE;
+      for (int entry = start; entry < end; entry++) {
+        minX = Math.min(minX, entryBoxes[entry * 4]);
+        minY = Math.min(minY, entryBoxes[entry * 4 + 1]);
+        maxX = Math.max(maxX, entryBoxes[entry * 4 + 2]);
+        maxY = Math.max(maxY, entryBoxes[entry * 4 + 3]);
+        minOrder = Math.min(minOrder, entryOrders[entry]);
+      }
+      boxes[node * 4] = minX;
+      boxes[node * 4 + 1] = minY;
+      boxes[node * 4 + 2] = maxX;
+      boxes[node * 4 + 3] = maxY;
+      firstChildren[node] = firstEntry + start;
+      childCounts[node] = end - start;
+      minOrders[node] = minOrder;
+      node++;
+    }
+    return node - firstNode;
+  }
+
+  private static void reorderNodes(int[] permutation, int levelStart, double[] boxes,
+      int[] firstChildren, int[] childCounts, int[] minOrders) {
+    final int count = permutation.length;
+    final double[] oldBoxes = Arrays.copyOfRange(boxes, levelStart * 4, (levelStart + count) * 4);
+    final int[] oldFirstChildren = Arrays.copyOfRange(firstChildren, levelStart, levelStart + count);
+    final int[] oldChildCounts = Arrays.copyOfRange(childCounts, levelStart, levelStart + count);
+    final int[] oldMinOrders = Arrays.copyOfRange(minOrders, levelStart, levelStart + count);
+    for (int i = 0; i < count; i++) {
+      final int source = permutation[i];
+      System.arraycopy(oldBoxes, source * 4, boxes, (levelStart + i) * 4, 4);
+      firstChildren[levelStart + i] = oldFirstChildren[source];
+      childCounts[levelStart + i] = oldChildCounts[source];
+      minOrders[levelStart + i] = oldMinOrders[source];
+    }
+  }
+
+  private static double[] permute(double[] boxes, int[] permutation) {
+    final double[] result = new double[boxes.length];
+    for (int i = 0; i < permutation.length; i++) {
+      System.arraycopy(boxes, permutation[i] * 4, result, i * 4, 4);
+    }
+    return result;
+  }
+
+  /**
+   * Computes the Sort-Tile-Recursive order of the given boxes: sort on the x of the centers, cut
+   * into vertical slices of whole nodes and sort each slice on the y of the centers.
+   */
+  private static int[] sortTileRecursive(double[] boxes, int count) {
+    final int nodeCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+    final int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+    final int sliceSize = ((nodeCount + sliceCount - 1) / Math.max(1, sliceCount)) * NODE_CAPACITY;
+    final int[] result = sortByCenter(boxes, identity(count), 0);
+    for (int start = 0; start < count; start += sliceSize) {
+      final int end = Math.min(count, start + sliceSize);
+      final int[] slice = sortByCenter(boxes, Arrays.copyOfRange(result, start, end), 1);
+      System.arraycopy(slice, 0, result, start, slice.length);
+    }
+    return result;
+  }
+
+  private static int[] sortByCenter(double[] boxes, int[] indices, int axis) {
+
+    // Sort on (center, index) by packing both into a long: the centers are positive RD
+    // coordinates, so their bit patterns sort like the values themselves.
+    final long[] keys = new long[indices.length];
+    for (int i = 0; i < indices.length; i++) {
+      final int index = indices[i];
+      final float center = (float) ((boxes[index * 4 + axis] + boxes[index * 4 + 2 + axis]) / 2);
+      keys[i] = ((long) Float.floatToIntBits(Math.max(0f, center)) << 32) | index;
+    }
+    Arrays.sort(keys);
+    final int[] result = new int[indices.length];
+    for (int i = 0; i < keys.length; i++) {
+      result[i] = (int) keys[i];
+    }
+    return result;
+  }
+
+  private static int[] identity(int count) {
+    final int[] result = new int[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = i;
+    }
+    return result;
+  }
+
+  interface StreetVisitor {
+
+    boolean visit(int street, double x, double y, double distance);
+  }
+
+  /**
+   * Binary min-heap of tree entries on (distance, order), without boxing.
+   */
+  private static class EntryQueue {
+
+    private double[] distances = new double[64];
+    private int[] orders = new int[64];
+    private int[] entries = new int[64];
+    private int size = 0;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    double peekDistance() {
+      return distances[0];
+    }
+
+    void add(double distance, int order, int entry) {
+      if (size == entries.length) {
+        distances = Arrays.copyOf(distances, size * 2);
+        orders = Arrays.copyOf(orders, size * 2);
+        entries = Arrays.copyOf(entries, size * 2);
+      }
+      int position = size++;
+      while (position > 0) {
+        final int parent = (position - 1) / 2;
+        if (!isLess(distance, order, parent)) {
+          break;
+        }
+        move(parent, position);
+        position = parent;
+      }
+      set(position, distance, order, entry);
+    }
+
+    int poll() {
+      final int result = entries[0];
+      size--;
+      final double distance = distances[size];
+      final int order = orders[size];
+      final int entry = entries[size];
+      int position = 0;
+      while (true) {
+        int child = position * 2 + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && isLess(distances[child + 1], orders[child + 1], child)) {
+          child++;
+        }
+        if (!isLess(distances[child], orders[child], distance, order)) {
+          break;
+        }
+        move(child, position);
+        position = child;
+      }
+      if (size > 0) {
+        set(position, distance, order, entry);
+      }
+      return result;
+    }
+
+    private boolean isLess(double distance, int order, int position) {
+      return isLess(distance, order, distances[position], orders[position]);
+    }
+
+    private static boolean isLess(double distance, int order, double otherDistance,
+        int otherOrder) {
+      return distance < otherDistance || (distance == otherDistance && order < otherOrder);
+    }
+
+    private void move(int from, int to) {
+      set(to, distances[from], orders[from], entries[from]);
+    }
+
+    private void set(int position, double distance, int order, int entry) {
+      distances[position] = distance;
+      orders[position] = order;
+      entries[position] = entry;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package choloc.app.streetfinder;
+
+import choloc.app.common.LruCache;
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Cache of street segments per cell of a fixed RD grid. A query is broken down into the cells it
+ * covers; the missing cells are fetched with a single request for the box around them, and the
+ * segments of all cells are merged. Instances can be shared by any number of street finders.
+ */
+public class StreetCellCache {
+
+  private static final long BYTES_PER_FEATURE = 96;
+  private static final long BYTES_PER_CELL = 64;
+
+  private final RdGrid grid;
+  private final LruCache<Long, List<ParsedStreet>> cells;
+
+  /**
+   * Creates a cache with the given cell size, bounded by the (estimated) memory taken by the
+   * segments. A time to live of zero or less means that cells don't expire.
+   */
+  public StreetCellCache(int cellSizeInMeters, long maxBytes, long timeToLiveMillis) {
+    this.grid = new RdGrid(cellSizeInMeters);
+    this.cells = new LruCache<>(maxBytes, timeToLiveMillis, StreetCellCache::estimateBytes);
+  }
+
+  /**
+   * Returns a street source that answers queries from this cache, obtaining the missing cells
+   * from the given source.
+   */
+  StreetSource wrap(StreetSource source) {
+    return new StreetSource() {
+
+      @Override
+      public List<ParsedStreet> findStreets(BoundingBox boundingBox)
+          throws IOException, XMLStreamException {
+        return StreetCellCache.this.findStreets(boundingBox, source);
+      }
+
+      @Override
+      public boolean findStreets(BoundingBox boundingBox, Deadline deadline,
+          Consumer<ParsedStreet> consumer) throws IOException, XMLStreamException {
+        return StreetCellCache.this.findStreets(boundingBox, source, deadline, consumer);
+      }
+    };
+  }
+
+  List<ParsedStreet> findStreets(BoundingBox boundingBox, StreetSource source)
+      throws IOException, XMLStreamException {
+
+    // Look up the cells.
+    final List<List<ParsedStreet>> found = new ArrayList<>();
+    final List<Long> missing = new ArrayList<>();
+    lookUpCells(boundingBox, found, missing);
+
+    // Fetch the missing cells in one go and divide the segments over them.
+    if (!missing.isEmpty()) {
+      found.addAll(divideOverCells(missing, source.findStreets(getBoundingBox(missing))));
+    }
+
+    // Merge the cells: segments crossing cell borders occur more than once. Keep only those
+    // intersecting the bounding box, as a direct query would.
+    final Set<String> featureIds = new HashSet<>();
+    final Set<ParsedStreet> features = Collections.newSetFromMap(new IdentityHashMap<>());
+    final List<ParsedStreet> result = new ArrayList<>();
+    for (List<ParsedStreet> streets : found) {
+      for (ParsedStreet street : streets) {
+        final boolean isNew = street.getFeatureId() == null ? features.add(street)
+            : featureIds.add(street.getFeatureId());
+        if (isNew && boundingBox.intersectsLine(street.getCoordinates())) {
+          result.add(street);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Passes the segments of the cells covering the bounding box to the consumer until the deadline
+   * passes, as {@link StreetSource#findStreets(BoundingBox, Deadline, Consumer)} describes. The
+   * missing cells are cached only if they were fetched completely.
+   */
+  boolean findStreets(BoundingBox boundingBox, StreetSource source, Deadline deadline,
+      Consumer<ParsedStreet> consumer) throws IOException, XMLStreamException {
+
+    // Pass on the cached cells right away.
+    final List<List<ParsedStreet>> found = new ArrayList<>();
+    final List<Long> missing = new ArrayList<>();
+    lookUpCells(boundingBox, found, missing);
+    found.forEach(streets -> streets.forEach(consumer));
+    if (missing.isEmpty()) {
+      return true;
+    }
+
+    // Fetch the missing cells, passing on the segments as they come in.
+    final List<ParsedStreet> fetched = Collections.synchronizedList(new ArrayList<>());
+    final boolean complete = source.findStreets(getBoundingBox(missing), deadline, street -> {
+      fetched.add(street);
+      consumer.accept(street);
+    });
+    if (complete) {
+      synchronized (fetched) {
+        divideOverCells(missing, fetched);
+      }
+    }
+    return complete;
+  }
+
+  private void lookUpCells(BoundingBox boundingBox, List<List<ParsedStreet>> found,
+      List<Long> missing) {
+    final int minColumn = grid.getColumn(boundingBox.getLowerLeft().x);
+    final int minRow = grid.getRow(boundingBox.getLowerLeft().y);
+    final int maxColumn = grid.getColumn(boundingBox.getUpperRight().x);
+    final int maxRow = grid.getRow(boundingBox.getUpperRight().y);
+    for (int column = minColumn; column <= maxColumn; column++) {
+      for (int row = minRow; row <= maxRow; row++) {
+        final long cell = RdGrid.getCell(column, row);
+        final List<ParsedStreet> streets = cells.get(cell);
+        if (streets == null) {
+          missing.add(cell);
+        } else {
+          found.add(streets);
+        }
+      }
+    }
+  }
+
+  private BoundingBox getBoundingBox(List<Long> cells) {
+    int minColumn = Integer.MAX_VALUE;
+    int minRow = Integer.MAX_VALUE;
+    int maxColumn = Integer.MIN_VALUE;
+    int maxRow = Integer.MIN_VALUE;
+    for (long cell : cells) {
+      minColumn = Math.min(minColumn, RdGrid.getColumn(cell));
+      minRow = Math.min(minRow, RdGrid.getRow(cell));
+      maxColumn = Math.max(maxColumn, RdGrid.getColumn(cell));
+      maxRow = Math.max(maxRow, RdGrid.getRow(cell));
+    }
+    return grid.getBoundingBox(minColumn, minRow, maxColumn, maxRow);
+  }
+
+  /**
+   * Divides the fetched segments over the missing cells and caches them.
+   */
+  private List<List<ParsedStreet>> divideOverCells(List<Long> missing,
+      List<ParsedStreet> fetched) {
+    final List<List<ParsedStreet>> result = new ArrayList<>(missing.size());
+    for (long cell : missing) {
+      final BoundingBox cellBox = grid.getBoundingBox(RdGrid.getColumn(cell), RdGrid.getRow(cell),
+          RdGrid.getColumn(cell), RdGrid.getRow(cell));
+      final List<ParsedStreet> streets = new ArrayList<>();
+      for (ParsedStreet street : fetched) {
+        if (cellBox.intersectsLine(street.getCoordinates())) {
+          streets.add(street);
+        }
+      }
+      final List<ParsedStreet> cellStreets = Collections.unmodifiableList(streets);
+      cells.put(cell, cellStreets);
+      result.add(cellStreets);
+    }
+    return result;
+  }
+
+  private static long estimateBytes(List<ParsedStreet> streets) {
+    long result = BYTES_PER_CELL;
+    for (ParsedStreet street : streets) {
+      result += BYTES_PER_FEATURE + street.getCoordinates().length * 8L;
+    }
+    return result;
+  }
+
+  public long getHitCount() {
+    return cells.getHitCount();
+  }
+
+  public long getMissCount() {
+    return cells.getMissCount();
+  }
+
+  public long getEvictionCount() {
+    return cells.getEvictionCount();
+  }
+
+  public long getEstimatedBytes() {
+    return cells.getWeight();
+  }
+
+  public void clear() {
+    cells.clear();
+  }
+}
@@ -1,171 +1,276 @@
 package choloc.app.streetfinder;
 
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.operation.TransformException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 public class StreetFinder extends GeoManipulator {
 
-  private static final String URL_TEMPLATE = "https://geodata.nationaalgeoregister.nl/nwbwegen/wfs"
-      + "?REQUEST=GetFeature"
-      + "&VERSION=2.0.0"
-      + "&SERVICE=WFS"
-      + "&typenames=nwbwegen:wegvakken"
-      + "&propertyname=stt_naam,gme_naam,wpsnaamnen,geom"
-      + "&count=200"
-      + "&bbox=%s,%s,%s,%s";
+  private static final int CLUSTER_CELL_SIZE_IN_METERS = 2000;
+
+  private final StreetSource streetSource;
 
   public StreetFinder() throws FactoryException {
+    this.streetSource = new WfsStreetSource();
+  }
+
+  /**
+   * Creates a street finder that answers all queries from a local street store instead of the
+   * nationaalgeoregister WFS. See {@link StreetStoreImporter} for creating the store.
+   */
+  public StreetFinder(StreetStore streetStore) throws FactoryException {
+    this.streetSource = streetStore;
+  }
+
+  /**
+   * Creates a street finder that queries the nationaalgeoregister WFS only for the grid cells
+   * that are not in the given cache.
+   */
+  public StreetFinder(StreetCellCache cache) throws FactoryException {
+    this(cache, null);
+  }
+
+  /**
+   * Creates a street finder that queries the nationaalgeoregister WFS, using the given cache if
+   * not null. Large searches are split into partitions that are fetched concurrently with the
+   * given executor, or with a shared default executor if it is null. The executor may be the one
+   * the lookups run on: a lookup fetches the partitions that the executor hasn't started yet on
+   * its own thread.
+   */
+  public StreetFinder(StreetCellCache cache, ExecutorService fetchExecutor)
+      throws FactoryException {
+    final WfsStreetSource wfsStreetSource = new WfsStreetSource(fetchExecutor);
+    if (cache == null) {
+      this.streetSource = wfsStreetSource;
+    } else {
+      this.streetSource = cache.wrap(wfsStreetSource);
+    }
   }
 
   public List<Street> findStreetsSortedByDistance(double lat, double lon,
       int searchSquareRadiusInMeters)
-      throws TransformException, IOException, ParserConfigurationException, SAXException {
+      throws TransformException, IOException, XMLStreamException {
 
-    // Compute the bounding box and determine the URL
+    // Compute the bounding box
     final RdPoint here= convertToRd(new LatLon(lat, lon));
     final BoundingBox boundingBox = new BoundingBox(here, searchSquareRadiusInMeters);
-    final URL url = new URL(String
-        .format(URL_TEMPLATE, "" + boundingBox.getLowerLeft().x, "" + boundingBox.getLowerLeft().y,
-            "" + boundingBox.getUpperRight().x,
-            "" + boundingBox.getUpperRight().y));
 
     // Obtain the street information.
-    final List<ParsedStreet> parsedStreets = obtainWfsData(url,
-        StreetFinder::obtainStreetsFromDocument, StreetFinder::fixNextUrl);
+    final List<ParsedStreet> parsedStreets = streetSource.findStreets(boundingBox);
     System.out.println("" + parsedStreets.size() + " streets found.");
 
-    // Collect the street segments into one street
-    final Map<StreetId, List<ParsedStreet>> streetsById = parsedStreets.stream()
-        .collect(Collectors.groupingBy(ParsedStreet::getStreetId));
-
-    // Compute the nearest point.
-    final List<Street> result = new ArrayList<>();
-    for (Entry<StreetId, List<ParsedStreet>> entry : streetsById.entrySet()) {
-      final List<List<RdPoint>> polygons = entry.getValue().stream().map(ParsedStreet::getPolygon)
-          .collect(
-              Collectors.toList());
-      final RdPoint nearestPoint = computeNearestPoint(polygons, here);
-      final double distance = nearestPoint.distance(here);
-      final LatLon reference = convertToLatLon(nearestPoint);
-      result.add(
-          new Street(entry.getKey(), reference.lat, reference.lon, (int) Math.round(distance)));
-    }
-
-    // Sort results and done.
+    // Compute the nearest point of every street.
+    final List<Street> result = computeStreetsSortedByDistance(new SegmentIndex(parsedStreets),
+        here, null);
     System.out.println("" + result.size() + " unique streets found.");
-    Collections.sort(result, Comparator.comparing(Street::getDistanceInMeters));
     return result;
   }
 
-  private static String fixNextUrl(String nextUrl) {
-    return nextUrl.replace(":/cgi-bin/mapserv.fcgi", "/nwbwegen/wfs");
-  }
-
-  private static List<ParsedStreet> obtainStreetsFromDocument(Document document) {
-    final NodeList nodeList = document.getElementsByTagName("nwbwegen:wegvakken");
-    return IntStream.range(0, nodeList.getLength()).mapToObj(index -> nodeList.item(index))
-        .map(StreetFinder::extractStreet).collect(Collectors.toList());
-  }
+  /**
+   * Finds the streets sorted by distance like
+   * {@link #findStreetsSortedByDistance(double, double, int)}, but returns when the deadline
+   * passes with the streets of the segments that were found so far. The result says whether it
+   * is complete.
+   */
+  public PartialResult<List<Street>> findStreetsSortedByDistance(double lat, double lon,
+      int searchSquareRadiusInMeters, Deadline deadline)
+      throws TransformException, IOException, XMLStreamException {
+
+    // Compute the bounding box
+    final RdPoint here = convertToRd(new LatLon(lat, lon));
+    final BoundingBox boundingBox = new BoundingBox(here, searchSquareRadiusInMeters);
 
-  private static ParsedStreet extractStreet(Node node) {
-
-    // Extract polygon
-    final Node geomNode = getChildNodeWithName(node, "nwbwegen:geom");
-    final Node lineStringNode = getChildNodeWithName(geomNode, "gml:LineString");
-    final String posListString = getChildNodeWithName(lineStringNode, "gml:posList")
-        .getTextContent();
-    final String[] splitPositions = posListString.split(" ");
-    final List<RdPoint> polygon = new ArrayList<>();
-    for (int i = 0; i < splitPositions.length; i += 2) {
-      final double x = Double.parseDouble(splitPositions[i]);
-      final double y = Double.parseDouble(splitPositions[i + 1]);
-      polygon.add(new RdPoint(x, y));
+    // Obtain the street information until the deadline.
+    final List<ParsedStreet> found = Collections.synchronizedList(new ArrayList<>());
+    final boolean complete = fetchBefore(deadline,
+        () -> streetSource.findStreets(boundingBox, deadline, found::add));
+
+    // Take the segments found so far: they may contain duplicates and segments outside the box.
+    final Set<String> featureIds = new HashSet<>();
+    final Set<ParsedStreet> features = Collections.newSetFromMap(new IdentityHashMap<>());
+    final List<ParsedStreet> parsedStreets = new ArrayList<>();
+    synchronized (found) {
+      for (ParsedStreet street : found) {
+        final boolean isNew = street.getFeatureId() == null ? features.add(street)
+            : featureIds.add(street.getFeatureId());
+        if (isNew && boundingBox.intersectsLine(street.getCoordinates())) {
+          parsedStreets.add(street);
+        }
+      }
     }
+    System.out.println("" + parsedStreets.size() + " streets found"
+        + (complete ? "." : " before the deadline."));
 
-    // Compose result
-    final String street = getChildNodeWithName(node, "nwbwegen:stt_naam").getTextContent();
-    final String place = getChildNodeWithName(node, "nwbwegen:wpsnaamnen").getTextContent();
-    final String municipality = getChildNodeWithName(node, "nwbwegen:gme_naam").getTextContent();
-    return new ParsedStreet(street, place, municipality, polygon);
+    // Compute the nearest point of every street.
+    final List<Street> result = computeStreetsSortedByDistance(new SegmentIndex(parsedStreets),
+        here, null);
+    return new PartialResult<>(result, complete);
   }
 
-  private static RdPoint computeNearestPoint(List<List<RdPoint>> polygons, RdPoint here) {
-    RdPoint result = null;
-    double distance = Double.MAX_VALUE;
-    for (List<RdPoint> polygon : polygons) {
-      final RdPoint currentPoint = computeNearestPointForSinglePolygon(polygon, here);
-      final double currentDistance = here.distance(currentPoint);
-      if (currentDistance < distance) {
-        distance = currentDistance;
-        result = currentPoint;
+  /**
+   * Finds the streets sorted by distance for each of the given locations, as
+   * {@link #findStreetsSortedByDistance(double, double, int)} would, in the order of the
+   * locations. Nearby locations are grouped, and the streets are obtained once per group.
+   */
+  public List<List<Street>> findStreetsSortedByDistance(List<LatLon> locations,
+      int searchSquareRadiusInMeters)
+      throws TransformException, IOException, XMLStreamException {
+
+    // Convert the locations and group them by the cell they are in.
+    final double[] coordinates = new double[2 * locations.size()];
+    for (int i = 0; i < locations.size(); i++) {
+      coordinates[2 * i] = locations.get(i).lat;
+      coordinates[2 * i + 1] = locations.get(i).lon;
+    }
+    convertToRd(coordinates, coordinates, locations.size());
+    final RdGrid clusterGrid = new RdGrid(CLUSTER_CELL_SIZE_IN_METERS);
+    final List<RdPoint> points = new ArrayList<>(locations.size());
+    final Map<Long, List<Integer>> clusters = new LinkedHashMap<>();
+    for (int i = 0; i < locations.size(); i++) {
+      final RdPoint point = new RdPoint(coordinates[2 * i], coordinates[2 * i + 1]);
+      points.add(point);
+      clusters.computeIfAbsent(
+          RdGrid.getCell(clusterGrid.getColumn(point.x), clusterGrid.getRow(point.y)),
+          cell -> new ArrayList<>()).add(i);
+    }
+
+    // Handle the groups.
+    final List<List<Street>> result = new ArrayList<>(
+        Collections.nCopies(locations.size(), null));
+    for (List<Integer> cluster : clusters.values()) {
+
+      // Obtain the streets for the box around all search squares.
+      final List<BoundingBox> boundingBoxes = cluster.stream()
+          .map(index -> new BoundingBox(points.get(index), searchSquareRadiusInMeters))
+          .collect(Collectors.toList());
+      final List<ParsedStreet> parsedStreets = streetSource.findStreets(union(boundingBoxes));
+      final SegmentIndex segmentIndex = new SegmentIndex(parsedStreets);
+
+      // Compute the result for each location from the segments in its own search square.
+      for (int i = 0; i < cluster.size(); i++) {
+        final boolean[] featureFilter = new boolean[parsedStreets.size()];
+        for (int feature = 0; feature < featureFilter.length; feature++) {
+          featureFilter[feature] = boundingBoxes.get(i)
+              .intersectsLine(parsedStreets.get(feature).getCoordinates());
+        }
+        result.set(cluster.get(i), computeStreetsSortedByDistance(segmentIndex,
+            points.get(cluster.get(i)), featureFilter));
       }
     }
     return result;
   }
 
-  private static RdPoint computeNearestPointForSinglePolygon(List<RdPoint> polygon, RdPoint here) {
-
-    // If there is just a single point, we have no choice.
-    if (polygon.size() == 1) {
-      return polygon.get(0);
+  private List<Street> computeStreetsSortedByDistance(SegmentIndex segmentIndex, RdPoint here,
+      boolean[] featureFilter) throws TransformException {
+
+    // Compute the nearest point of every street.
+    final RdPoint[] nearestPoints = new RdPoint[segmentIndex.getStreetCount()];
+    segmentIndex.visitNearestStreets(here.x, here.y, Double.POSITIVE_INFINITY, featureFilter,
+        (street, x, y, distance) -> {
+          nearestPoints[street] = new RdPoint(x, y);
+          return true;
+        });
+
+    // Determine the streets to report in order of appearance, and convert their nearest points
+    // in one go.
+    final List<Integer> streets = new ArrayList<>();
+    final boolean[] listed = new boolean[segmentIndex.getStreetCount()];
+    for (int feature = 0; feature < segmentIndex.getFeatureCount(); feature++) {
+      final int street = segmentIndex.getStreetOfFeature(feature);
+      if (nearestPoints[street] != null && !listed[street]
+          && (featureFilter == null || featureFilter[feature])) {
+        listed[street] = true;
+        streets.add(street);
+      }
     }
-
-    // So we can assume that there are line segments.
-    final List<RdPoint> candidates = new ArrayList<>();
-    for (int i = 1; i < polygon.size(); i++) {
-      candidates.add(getNearestPointForLineSegment(polygon.get(i - 1), polygon.get(i), here));
+    final double[] coordinates = new double[2 * streets.size()];
+    for (int i = 0; i < streets.size(); i++) {
+      coordinates[2 * i] = nearestPoints[streets.get(i)].x;
+      coordinates[2 * i + 1] = nearestPoints[streets.get(i)].y;
     }
-
-    // Choose the closest
-    RdPoint result = null;
-    double distance = Double.MAX_VALUE;
-    for (RdPoint candidate : candidates) {
-      final double currentDistance = here.distance(candidate);
-      if (currentDistance < distance) {
-        distance = currentDistance;
-        result = candidate;
-      }
+    convertToLatLon(coordinates, coordinates, streets.size());
+
+    // Compose the streets, in order of appearance. The street ordinals are distinct, and so are
+    // their ids.
+    final List<Street> result = new ArrayList<>(streets.size());
+    for (int i = 0; i < streets.size(); i++) {
+      final double distance = nearestPoints[streets.get(i)].distance(here);
+      result.add(new Street(segmentIndex.getStreetId(streets.get(i)), coordinates[2 * i],
+          coordinates[2 * i + 1], (int) Math.round(distance)));
     }
 
-    // Done.
+    // Sort results and done. The sort is stable, so streets at the same distance keep their order
+    // of appearance.
+    Collections.sort(result, Comparator.comparing(Street::getDistanceInMeters));
     return result;
   }
 
-  private static RdPoint getNearestPointForLineSegment(RdPoint point1, RdPoint point2, RdPoint here) {
-
-    // In case the segment has length 0, we don't have a direction.
-    final double segmentLengthSquared = point1.distanceSq(point2);
-    if (segmentLengthSquared == 0.0) {
-      return point1;
+  private static BoundingBox union(List<BoundingBox> boundingBoxes) {
+    double minX = Double.MAX_VALUE;
+    double minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE;
+    double maxY = -Double.MAX_VALUE;
+    for (BoundingBox boundingBox : boundingBoxes) {
+      minX = Math.min(minX, boundingBox.getLowerLeft().x);
+      minY = Math.min(minY, boundingBox.getLowerLeft().y);
+      maxX = Math.max(maxX, boundingBox.getUpperRight().x);
+      maxY = Math.max(maxY, boundingBox.getUpperRight().y);
     }
+    return new BoundingBox(new RdPoint(minX, minY), new RdPoint(maxX, maxY));
+  }
 
-    // Use scalar projection rule to project vector (point1 - here) on vector (point1 - point2).
-    final RdPoint segmentVector = new RdPoint(point2.x - point1.x, point2.y - point1.y);
-    final RdPoint hereVector = new RdPoint(here.x - point1.x, here.y - point1.y);
-    double dotProduct = segmentVector.x * hereVector.x + segmentVector.y * hereVector.y;
-    double scalar = dotProduct / segmentLengthSquared;
-
-    // If 0 <= scalar <= 1, the projection is on the line segment, otherwise, it's outside.
-    double adjustedScalar = Math.max(0, Math.min(1, scalar));
+  /**
+   * Finds the k streets nearest to the given location, within the given radius, sorted by
+   * distance. Unlike {@link #findStreetsSortedByDistance(double, double, int)}, the search stops
+   * as soon as k streets are found and only those are converted back to WGS84.
+   */
+  public List<Street> findNearestStreets(double lat, double lon, int k, int maxRadiusInMeters)
+      throws TransformException, IOException, XMLStreamException {
+    if (k <= 0) {
+      throw new IllegalArgumentException("Number of streets is not valid.");
+    }
 
-    // Find the point corresponding to the scalar value.
-    return new RdPoint(point1.x + adjustedScalar * segmentVector.x,
-        point1.y + adjustedScalar * segmentVector.y);
+    // Obtain the street information: all streets within the radius lie within this box.
+    final RdPoint here = convertToRd(new LatLon(lat, lon));
+    final BoundingBox boundingBox = new BoundingBox(here, maxRadiusInMeters);
+    final List<ParsedStreet> parsedStreets = streetSource.findStreets(boundingBox);
+
+    // Find the nearest streets.
+    final SegmentIndex segmentIndex = new SegmentIndex(parsedStreets);
+    final List<Integer> nearestStreets = new ArrayList<>(k);
+    final List<RdPoint> nearestPoints = new ArrayList<>(k);
+    segmentIndex.visitNearestStreets(here.x, here.y, maxRadiusInMeters,
+        (street, x, y, distance) -> {
+          nearestStreets.add(street);
+          nearestPoints.add(new RdPoint(x, y));
+          return nearestStreets.size() < k;
+        });
+
+    // Compose the streets: they are already sorted.
+    final double[] coordinates = new double[2 * nearestStreets.size()];
+    for (int i = 0; i < nearestStreets.size(); i++) {
+      coordinates[2 * i] = nearestPoints.get(i).x;
+      coordinates[2 * i + 1] = nearestPoints.get(i).y;
+    }
+    convertToLatLon(coordinates, coordinates, nearestStreets.size());
+    final List<Street> result = new ArrayList<>(nearestStreets.size());
+    for (int i = 0; i < nearestStreets.size(); i++) {
+      result.add(new Street(segmentIndex.getStreetId(nearestStreets.get(i)), coordinates[2 * i],
+          coordinates[2 * i + 1], (int) Math.round(nearestPoints.get(i).distance(here))));
+    }
+    return result;
   }
 
   public static final void main(String[] args) throws Exception {
@@ -177,35 +282,4 @@ public class StreetFinder extends GeoManipulator {
           .getMunicipalityName() + ") : " + street.getDistanceInMeters());
     }
   }
-
-  private static class ParsedStreet {
-
-    private final StreetId streetId;
-    private final List<RdPoint> polygon;
-
-    public ParsedStreet(String street, String place, String municipality, List<RdPoint> polygon) {
-      if (street == null || street.trim().isEmpty()) {
-        throw new IllegalArgumentException("Street is not valid.");
-      }
-      if (place == null || place.trim().isEmpty()) {
-        throw new IllegalArgumentException("Place is not valid.");
-      }
-      if (municipality == null || municipality.trim().isEmpty()) {
-        throw new IllegalArgumentException("Municipality is not valid.");
-      }
-      if (polygon.isEmpty()) {
-        throw new IllegalArgumentException("Polygon is not valid.");
-      }
-      this.streetId = new StreetId(street, place, municipality);
-      this.polygon = polygon;
-    }
-
-    public StreetId getStreetId() {
-      return streetId;
-    }
-
-    public List<RdPoint> getPolygon() {
-      return polygon;
-    }
-  }
 }
@@ -0,0 +1,27 @@
+package choloc.app.streetfinder;
+
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Supplies the street segments (wegvakken) that intersect a bounding box in RD coordinates.
+ */
+interface StreetSource {
+
+  List<ParsedStreet> findStreets(BoundingBox boundingBox)
+      throws IOException, XMLStreamException;
+
+  /**
+   * Passes the street segments to the consumer as they are found, until the deadline passes.
+   * Returns whether all segments were found. The consumer may be called from several threads and
+   * may receive segments more than once or segments outside the box.
+   */
+  default boolean findStreets(BoundingBox boundingBox, Deadline deadline,
+      Consumer<ParsedStreet> consumer) throws IOException, XMLStreamException {
+    findStreets(boundingBox).forEach(consumer);
+    return true;
+  }
+}
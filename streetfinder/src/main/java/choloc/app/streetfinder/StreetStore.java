@@ -0,0 +1,182 @@
+package choloc.app.streetfinder;
+
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read-only, memory-mapped street store as written by {@link StreetStoreImporter}. The store
+ * holds the wegvakken of the NWB with their envelopes and a uniform grid over RD coordinates, so
+ * that a bounding box query only touches the features in the grid cells it covers.
+ *
+ * <p>File layout (big endian):
+ * <pre>
+ * header       magic, version, grid origin x/y, cell size, columns, rows,
+ *              street id count, feature count, cell entry count, point count
+ * strings      count, then per string its UTF-8 length and bytes
+ * street ids   per street id the string indices of street, place and municipality
+ * features     per feature: street id index, minX, minY, maxX, maxY, first point, point count
+ * cell index   (columns * rows + 1) offsets into the cell entries
+ * cell entries feature indices, ascending within each cell
+ * points       x and y per point
+ * </pre>
+ *
+ * <p>Instances are safe for use by multiple threads: the mapped buffer is only read through
+ * absolute accessors.
+ */
+public class StreetStore implements StreetSource {
+
+  static final int MAGIC = 0x4E574253;
+  static final int VERSION = 1;
+  static final int FEATURE_RECORD_SIZE = 4 + 4 * 8 + 4 + 4;
+
+  private final MappedByteBuffer buffer;
+  private final StreetId[] streetIds;
+
+  private final double gridMinX;
+  private final double gridMinY;
+  private final double cellSize;
+  private final int columns;
+  private final int rows;
+  private final int featureCount;
+
+  private final int featuresOffset;
+  private final int cellIndexOffset;
+  private final int cellEntriesOffset;
+  private final int pointsOffset;
+
+  private StreetStore(MappedByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+
+    // Read header
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a street store.");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported street store version: " + buffer.getInt(4));
+    }
+    gridMinX = buffer.getDouble(8);
+    gridMinY = buffer.getDouble(16);
+    cellSize = buffer.getDouble(24);
+    columns = buffer.getInt(32);
+    rows = buffer.getInt(36);
+    final int streetIdCount = buffer.getInt(40);
+    featureCount = buffer.getInt(44);
+    final int cellEntryCount = buffer.getInt(48);
+    int offset = 56;
+
+    // Read the strings
+    final String[] strings = new String[buffer.getInt(offset)];
+    offset += 4;
+    for (int i = 0; i < strings.length; i++) {
+      final byte[] bytes = new byte[buffer.getInt(offset)];
+      offset += 4;
+      for (int b = 0; b < bytes.length; b++) {
+        bytes[b] = buffer.get(offset + b);
+      }
+      offset += bytes.length;
+      strings[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Read the street ids: these are kept on the heap as every result refers to them.
+    streetIds = new StreetId[streetIdCount];
+    for (int i = 0; i < streetIdCount; i++) {
+      streetIds[i] = new StreetId(strings[buffer.getInt(offset)], strings[buffer.getInt(offset + 4)],
+          strings[buffer.getInt(offset + 8)]);
+      offset += 12;
+    }
+
+    // Determine the offsets of the remaining sections.
+    featuresOffset = offset;
+    cellIndexOffset = featuresOffset + featureCount * FEATURE_RECORD_SIZE;
+    cellEntriesOffset = cellIndexOffset + (columns * rows + 1) * 4;
+    pointsOffset = cellEntriesOffset + cellEntryCount * 4;
+  }
+
+  public static StreetStore open(Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Street store is too large to map: " + file);
+      }
+      return new StreetStore(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  public int getFeatureCount() {
+    return featureCount;
+  }
+
+  @Override
+  public List<ParsedStreet> findStreets(BoundingBox boundingBox) {
+
+    // Determine the cells covered by the bounding box.
+    final int minColumn = toCell(boundingBox.getLowerLeft().x, gridMinX, columns);
+    final int maxColumn = toCell(boundingBox.getUpperRight().x, gridMinX, columns);
+    final int minRow = toCell(boundingBox.getLowerLeft().y, gridMinY, rows);
+    final int maxRow = toCell(boundingBox.getUpperRight().y, gridMinY, rows);
+
+    // Collect the candidate features: a feature can occur in several cells.
+    int[] candidates = new int[64];
+    int candidateCount = 0;
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int column = minColumn; column <= maxColumn; column++) {
+        final int cell = row * columns + column;
+        final int start = buffer.getInt(cellIndexOffset + cell * 4);
+        final int end = buffer.getInt(cellIndexOffset + (cell + 1) * 4);
+        for (int entry = start; entry < end; entry++) {
+          if (candidateCount == candidates.length) {
+            candidates = Arrays.copyOf(candidates, candidateCount * 2);
+          }
+          candidates[candidateCount] = buffer.getInt(cellEntriesOffset + entry * 4);
+          candidateCount++;
+        }
+      }
+    }
+    Arrays.sort(candidates, 0, candidateCount);
+
+    // Keep the features that actually intersect the bounding box, in store order.
+    final List<ParsedStreet> result = new ArrayList<>();
+    int previous = -1;
+    for (int i = 0; i < candidateCount; i++) {
+      final int feature = candidates[i];
+      if (feature == previous) {
+        continue;
+      }
+      previous = feature;
+      final int record = featuresOffset + feature * FEATURE_RECORD_SIZE;
+      if (!boundingBox.intersectsEnvelope(buffer.getDouble(record + 4),
+          buffer.getDouble(record + 12), buffer.getDouble(record + 20),
+          buffer.getDouble(record + 28))) {
+        continue;
+      }
+      final double[] coordinates = readCoordinates(buffer.getInt(record + 36),
+          buffer.getInt(record + 40));
+      if (boundingBox.intersectsLine(coordinates)) {
+        result.add(new ParsedStreet(null, streetIds[buffer.getInt(record)], coordinates));
+      }
+    }
+    return result;
+  }
+
+  private double[] readCoordinates(int firstPoint, int pointCount) {
+    final double[] coordinates = new double[pointCount * 2];
+    final int position = pointsOffset + firstPoint * 16;
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = buffer.getDouble(position + i * 8);
+    }
+    return coordinates;
+  }
+
+  private int toCell(double coordinate, double gridMin, int cellCount) {
+    final int cell = (int) Math.floor((coordinate - gridMin) / cellSize);
+    return Math.max(0, Math.min(cellCount - 1, cell));
+  }
+}
@@ -0,0 +1,286 @@
+package choloc.app.streetfinder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Converts an NWB wegvakken dump (GML, as served by the nationaalgeoregister WFS) into the binary
+ * format read by {@link StreetStore}. The dump is read as a stream, so it doesn't need to fit in
+ * memory as a document.
+ */
+public class StreetStoreImporter {
+
+  private static final double DEFAULT_CELL_SIZE_IN_METERS = 1000;
+
+  private final double cellSize;
+
+  private final Map<String, Integer> stringIndices = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+  private final Map<StreetId, Integer> streetIdIndices = new HashMap<>();
+  private final List<int[]> streetIds = new ArrayList<>();
+
+  private int[] featureStreetIds = new int[1024];
+  private double[] featureEnvelopes = new double[4 * 1024];
+  private int[] featureFirstPoints = new int[1024];
+  private int featureCount = 0;
+  private double[] points = new double[16 * 1024];
+  private int pointCount = 0;
+  private int skippedCount = 0;
+
+  public StreetStoreImporter() {
+    this(DEFAULT_CELL_SIZE_IN_METERS);
+  }
+
+  public StreetStoreImporter(double cellSize) {
+    if (cellSize <= 0) {
+      throw new IllegalArgumentException("Cell size is not valid.");
+    }
+    this.cellSize = cellSize;
+  }
+
+  public void importDump(Path gmlFile, Path storeFile) throws IOException, XMLStreamException {
+    try (final InputStream inputStream = new BufferedInputStream(Files.newInputStream(gmlFile))) {
+      readDump(inputStream);
+    }
+    System.out.println("" + featureCount + " features read, " + skippedCount + " skipped.");
+    writeStore(storeFile);
+  }
+
+  private void readDump(InputStream inputStream) throws XMLStreamException {
+    final XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    final XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT && WfsStreetSource.FEATURE_NAME
+            .equals(reader.getLocalName())) {
+          readFeature(reader);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void readFeature(XMLStreamReader reader) throws XMLStreamException {
+
+    // Use the same rules as for WFS results, but skip invalid features instead of failing.
+    final ParsedStreet parsedStreet;
+    try {
+      parsedStreet = WfsStreetSource.readStreet(reader);
+    } catch (IllegalArgumentException e) {
+      skippedCount++;
+      return;
+    }
+    addFeature(parsedStreet);
+  }
+
+  private void addFeature(ParsedStreet parsedStreet) {
+
+    // Make room
+    if (featureCount == featureStreetIds.length) {
+      featureStreetIds = Arrays.copyOf(featureStreetIds, featureCount * 2);
+      featureEnvelopes = Arrays.copyOf(featureEnvelopes, featureCount * 8);
+      featureFirstPoints = Arrays.copyOf(featureFirstPoints, featureCount * 2);
+    }
+    final double[] coordinates = parsedStreet.getCoordinates();
+    final int newPointCount = pointCount + parsedStreet.getPointCount();
+    if (newPointCount * 2 > points.length) {
+      points = Arrays.copyOf(points, Math.max(points.length * 2, newPointCount * 2));
+    }
+
+    // Add the points and compute the envelope.
+    double minX = Double.MAX_VALUE;
+    double minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE;
+    double maxY = -Double.MAX_VALUE;
+    featureFirstPoints[featureCount] = pointCount;
+    System.arraycopy(coordinates, 0, points, pointCount * 2, coordinates.length);
+    pointCount = newPointCount;
+    for (int i = 0; i < coordinates.length; i += 2) {
+      minX = Math.min(minX, coordinates[i]);
+      minY = Math.min(minY, coordinates[i + 1]);
+      maxX = Math.max(maxX, coordinates[i]);
+      maxY = Math.max(maxY, coordinates[i + 1]);
+    }
+    featureEnvelopes[featureCount * 4] = minX;
+    featureEnvelopes[featureCount * 4 + 1] = minY;
+    featureEnvelopes[featureCount * 4 + 2] = maxX;
+    featureEnvelopes[featureCount * 4 + 3] = maxY;
+    featureStreetIds[featureCount] = getStreetIdIndex(parsedStreet.getStreetId());
+    featureCount++;
+  }
+
+  private int getStreetIdIndex(StreetId streetId) {
+    return streetIdIndices.computeIfAbsent(streetId, key -> {
+      streetIds.add(new int[]{getStringIndex(key.getStreetName()),
+          getStringIndex(key.getPlaceName()), getStringIndex(key.getMunicipalityName())});
+      return streetIds.size() - 1;
+    });
+  }
+
+  private int getStringIndex(String string) {
+    return stringIndices.computeIfAbsent(string, key -> {
+      strings.add(key);
+      return strings.size() - 1;
+    });
+  }
+
+  private void writeStore(Path storeFile) throws IOException {
+
+    // Compute the grid
+    double gridMinX = Double.MAX_VALUE;
+    double gridMinY = Double.MAX_VALUE;
+    double gridMaxX = -Double.MAX_VALUE;
+    double gridMaxY = -Double.MAX_VALUE;
+    for (int feature = 0; feature < featureCount; feature++) {
+      gridMinX = Math.min(gridMinX, featureEnvelopes[feature * 4]);
+      gridMinY = Math.min(gridMinY, featureEnvelopes[feature * 4 + 1]);
+      gridMaxX = Math.max(gridMaxX, featureEnvelopes[feature * 4 + 2]);
+      gridMaxY = Math.max(gridMaxY, featureEnvelopes[feature * 4 + 3]);
+    }
+    if (featureCount == 0) {
+      gridMinX = gridMinY = gridMaxX = gridMaxY = 0;
+    }
+    gridMinX = Math.floor(gridMinX / cellSize) * cellSize;
+    gridMinY = Math.floor(gridMinY / cellSize) * cellSize;
+    final int columns = (int) Math.floor((gridMaxX - gridMinX) / cellSize) + 1;
+    final int rows = (int) Math.floor((gridMaxY - gridMinY) / cellSize) + 1;
+
+    // Count the features per cell, then fill the cells in feature order.
+    final int[] cellIndex = new int[columns * rows + 1];
+    for (int feature = 0; feature < featureCount; feature++) {
+      forEachCell(feature, gridMinX, gridMinY, columns, rows, cell -> cellIndex[cell + 1]++);
+    }
+    for (int cell = 0; cell < columns * rows; cell++) {
+      cellIndex[cell + 1] += cellIndex[cell];
+    }
+    final int[] cellEntries = new int[cellIndex[columns * rows]];
+    final int[] cellFill = Arrays.copyOf(cellIndex, columns * rows);
+    for (int feature = 0; feature < featureCount; feature++) {
+      final int currentFeature = feature;
+      forEachCell(feature, gridMinX, gridMinY, columns, rows,
+          cell -> cellEntries[cellFill[cell]++] = currentFeature);
+    }
+
+    // Check the size before anything is written: the store is mapped as one buffer.
+    final List<byte[]> encodedStrings = new ArrayList<>(strings.size());
+    for (String string : strings) {
+      encodedStrings.add(string.getBytes(StandardCharsets.UTF_8));
+    }
+    if (getStoreSize(encodedStrings, cellIndex.length, cellEntries.length) > Integer.MAX_VALUE) {
+      throw new IOException("Street store would exceed the maximum size: use a smaller dump.");
+    }
+
+    // Write the store.
+    try (final DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(storeFile)))) {
+
+      // Header
+      output.writeInt(StreetStore.MAGIC);
+      output.writeInt(StreetStore.VERSION);
+      output.writeDouble(gridMinX);
+      output.writeDouble(gridMinY);
+      output.writeDouble(cellSize);
+      output.writeInt(columns);
+      output.writeInt(rows);
+      output.writeInt(streetIds.size());
+      output.writeInt(featureCount);
+      output.writeInt(cellEntries.length);
+      output.writeInt(pointCount);
+
+      // Strings and street ids
+      output.writeInt(encodedStrings.size());
+      for (byte[] bytes : encodedStrings) {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+      }
+      for (int[] streetId : streetIds) {
+        for (int stringIndex : streetId) {
+          output.writeInt(stringIndex);
+        }
+      }
+
+      // Features
+      for (int feature = 0; feature < featureCount; feature++) {
+        output.writeInt(featureStreetIds[feature]);
+        for (int i = 0; i < 4; i++) {
+          output.writeDouble(featureEnvelopes[feature * 4 + i]);
+        }
+        output.writeInt(featureFirstPoints[feature]);
+        final int end = feature + 1 < featureCount ? featureFirstPoints[feature + 1] : pointCount;
+        output.writeInt(end - featureFirstPoints[feature]);
+      }
+
+      // Grid and points
+      for (int offset : cellIndex) {
+        output.writeInt(offset);
+      }
+      for (int entry : cellEntries) {
+        output.writeInt(entry);
+      }
+      for (int i = 0; i < pointCount * 2; i++) {
+        output.writeDouble(points[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes that {@link #writeStore(Path)} writes, section by section.
+   */
+  private long getStoreSize(List<byte[]> encodedStrings, int cellIndexLength,
+      int cellEntryCount) {
+    long size = 2 * 4 + 3 * 8 + 6 * 4;
+    size += 4;
+    for (byte[] bytes : encodedStrings) {
+      size += 4 + bytes.length;
+    }
+    size += 3 * 4L * streetIds.size();
+    size += (4 + 4 * 8 + 4 + 4) * (long) featureCount;
+    size += 4L * cellIndexLength + 4L * cellEntryCount;
+    size += 2 * 8L * pointCount;
+    return size;
+  }
+
+  private void forEachCell(int feature, double gridMinX, double gridMinY, int columns, int rows,
+      IntConsumer consumer) {
+    final int minColumn = Math.min(columns - 1,
+        (int) Math.floor((featureEnvelopes[feature * 4] - gridMinX) / cellSize));
+    final int minRow = Math.min(rows - 1,
+        (int) Math.floor((featureEnvelopes[feature * 4 + 1] - gridMinY) / cellSize));
+    final int maxColumn = Math.min(columns - 1,
+        (int) Math.floor((featureEnvelopes[feature * 4 + 2] - gridMinX) / cellSize));
+    final int maxRow = Math.min(rows - 1,
+        (int) Math.floor((featureEnvelopes[feature * 4 + 3] - gridMinY) / cellSize));
+    for (int row = minRow; row <= maxRow; row++) {
+      for (int column = minColumn; column <= maxColumn; column++) {
+        consumer.accept(row * columns + column);
+      }
+    }
+  }
+
+  public static final void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Usage: StreetStoreImporter <wegvakken.gml> <street store file>");
+      return;
+    }
+    new StreetStoreImporter().importDump(Paths.get(args[0]), Paths.get(args[1]));
+  }
+}
@@ -0,0 +1,274 @@
+package choloc.app.streetfinder;
+
+import choloc.app.common.Hedger;
+import choloc.app.common.PooledHttpClients;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * HTTP transport shared by all WFS requests. Connections to the PDOK hosts are kept alive in a
+ * pool, responses come in compressed and are decompressed while the parser reads them. Responses
+ * can be kept in an on-disk cache.
+ */
+final class WfsHttpTransport implements WfsTransport {
+
+  private static final String USER_AGENT = "choloc-streetfinder";
+  private static final int MAX_CONNECTIONS = 32;
+  private static final int MAX_CONNECTIONS_PER_HOST = 12;
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int READ_TIMEOUT_MILLIS = 60000;
+
+  private static final WfsHttpTransport INSTANCE = new WfsHttpTransport();
+
+  private final CloseableHttpClient client = PooledHttpClients.create(USER_AGENT, MAX_CONNECTIONS,
+      MAX_CONNECTIONS_PER_HOST, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+  private volatile WfsResponseCache responseCache = null;
+  private volatile Hedger hedger = null;
+
+  private WfsHttpTransport() {
+  }
+
+  static WfsHttpTransport getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Sets the on-disk cache for responses, or removes it if null.
+   */
+  void setResponseCache(WfsResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
+  /**
+   * Sets the hedger for requests, or stops hedging if null.
+   */
+  void setHedger(Hedger hedger) {
+    this.hedger = hedger;
+  }
+
+  /**
+   * Sends a GET request and returns the (decompressed) response body. With a deadline, the
+   * request times out when it passes. Closing the stream returns the connection to the pool, or
+   * drops the connection if the body wasn't read because the deadline passed.
+   *
+   * <p>With a response cache, a recently confirmed response is served from the cache, and an older
+   * one is revalidated with a conditional GET. A new response is stored as it is read.
+   */
+  @Override
+  public InputStream open(URL url, Deadline deadline) throws IOException {
+
+    // Look in the cache first.
+    final WfsResponseCache cache = this.responseCache;
+    WfsResponseCache.Entry entry = cache == null ? null : cache.get(url);
+    if (entry != null && (cache.isOffline() || entry.isFresh())) {
+      try {
+        return entry.open();
+      } catch (FileNotFoundException e) {
+        entry = null;
+      }
+    }
+    if (cache != null && cache.isOffline()) {
+      throw new FileNotFoundException("WFS response is not in the offline cache: " + url);
+    }
+
+    // Send the request, hedged if there is a hedger.
+    final URI uri;
+    try {
+      uri = url.toURI();
+    } catch (URISyntaxException e) {
+      throw new IOException("Invalid URL: " + url, e);
+    }
+    final Exchange exchange = send(uri, deadline, entry);
+    final HttpGet request = exchange.request;
+    final CloseableHttpResponse response = exchange.response;
+
+    // Check the response.
+    final int statusCode = response.getStatusLine().getStatusCode();
+    if (statusCode == HttpStatus.SC_NOT_MODIFIED && entry != null) {
+      response.close();
+      entry.confirm();
+      return entry.open();
+    }
+    final HttpEntity entity = response.getEntity();
+    if (statusCode >= 300 || entity == null) {
+      response.close();
+      throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: "
+          + url);
+    }
+
+    // Return the body, storing it in the cache while it is read.
+    final WfsResponseCache.BodyWriter bodyWriter;
+    try {
+      bodyWriter = cache == null ? null : cache.store(url, getHeader(response, HttpHeaders.ETAG),
+          getHeader(response, HttpHeaders.LAST_MODIFIED));
+    } catch (IOException e) {
+      response.close();
+      throw e;
+    }
+    return new ResponseStream(entity.getContent(), request, response, deadline, bodyWriter);
+  }
+
+  private Exchange send(URI uri, Deadline deadline, WfsResponseCache.Entry entry)
+      throws IOException {
+    final Hedger hedger = this.hedger;
+    if (hedger == null) {
+      return new Exchange(uri, deadline, entry).call();
+    }
+    try {
+      return hedger.execute(() -> new Exchange(uri, deadline, entry), Exchange::close);
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for WFS data.");
+    } catch (Exception e) {
+      throw new IOException("Could not obtain WFS data.", e);
+    }
+  }
+
+  private static String getHeader(CloseableHttpResponse response, String name) {
+    final Header header = response.getFirstHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  /**
+   * A GET request and its response.
+   */
+  private class Exchange implements Hedger.Attempt<Exchange> {
+
+    private final HttpGet request;
+    private CloseableHttpResponse response = null;
+
+    Exchange(URI uri, Deadline deadline, WfsResponseCache.Entry entry) {
+      request = new HttpGet(uri);
+      if (deadline != null) {
+        final int timeout = (int) Math.max(1, Math.min(READ_TIMEOUT_MILLIS,
+            deadline.getRemainingMillis()));
+        request.setConfig(RequestConfig.custom()
+            .setConnectionRequestTimeout(Math.min(timeout, CONNECT_TIMEOUT_MILLIS))
+            .setConnectTimeout(Math.min(timeout, CONNECT_TIMEOUT_MILLIS))
+            .setSocketTimeout(timeout)
+            .build());
+      }
+      if (entry != null && entry.getETag() != null) {
+        request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.getETag());
+      }
+      if (entry != null && entry.getLastModified() != null) {
+        request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.getLastModified());
+      }
+    }
+
+    @Override
+    public Exchange call() throws IOException {
+      response = client.execute(request);
+      return this;
+    }
+
+    @Override
+    public void abort() {
+      request.abort();
+    }
+
+    void close() {
+      try {
+        response.close();
+      } catch (IOException e) {
+        // The connection is dropped anyway.
+      }
+    }
+  }
+
+  /**
+   * Response body that releases the connection when it is closed, and passes the body on to the
+   * response cache if there is one.
+   */
+  private static class ResponseStream extends FilterInputStream {
+
+    private final HttpGet request;
+    private final CloseableHttpResponse response;
+    private final Deadline deadline;
+    private final WfsResponseCache.BodyWriter bodyWriter;
+    private boolean complete = false;
+
+    ResponseStream(InputStream body, HttpGet request, CloseableHttpResponse response,
+        Deadline deadline, WfsResponseCache.BodyWriter bodyWriter) {
+      super(body);
+      this.request = request;
+      this.response = response;
+      this.deadline = deadline;
+      this.bodyWriter = bodyWriter;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] buffer = new byte[1];
+      final int length = read(buffer, 0, 1);
+      return length < 0 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int result = super.read(buffer, offset, length);
+      if (result < 0) {
+        complete = true;
+      } else if (bodyWriter != null) {
+        bodyWriter.write(buffer, offset, result);
+      }
+      return result;
+    }
+
+    @Override
+    public long skip(long length) throws IOException {
+      final byte[] buffer = new byte[(int) Math.min(length, 8192)];
+      final int result = read(buffer, 0, buffer.length);
+      return Math.max(result, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        final boolean abandoned = (deadline != null && deadline.hasExpired())
+            || Thread.currentThread().isInterrupted();
+        if (abandoned) {
+          request.abort();
+        } else if (bodyWriter != null) {
+
+          // The parser may stop before the end of the body: read the rest for the cache.
+          final byte[] buffer = new byte[8192];
+          while (read(buffer, 0, buffer.length) >= 0) {
+            // Keep reading
+          }
+        }
+        if (bodyWriter != null) {
+          if (complete) {
+            bodyWriter.commit();
+          } else {
+            bodyWriter.discard();
+          }
+        }
+        super.close();
+      } finally {
+        response.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package choloc.app.streetfinder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of WFS responses, which survives restarts. Responses are keyed by their normalized
+ * URL (see {@link #normalize(URL)}): every entry is stored as a gzip compressed body and a
+ * properties file with the URL, the ETag and Last-Modified validators and the time the response
+ * was last confirmed. Entries that were confirmed recently are served without contacting the
+ * server; older entries are revalidated with a conditional GET. The bodies are kept under a size
+ * cap by evicting the least recently used entries.
+ *
+ * <p>In offline mode, responses are only served from the cache, and a request that is not in the
+ * cache fails. Install the cache with {@link GeoManipulator#setWfsResponseCache}.
+ */
+public class WfsResponseCache {
+
+  private static final String BODY_SUFFIX = ".gz";
+  private static final String PROPERTIES_SUFFIX = ".properties";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private final Path directory;
+  private final long maxBytes;
+  private final long revalidateAfterMillis;
+  private final boolean offline;
+
+  // Size of the body of every entry, in access order.
+  private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong revalidationCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Opens (or creates) the cache in the given directory. Entries that were confirmed less than
+   * the given time ago are served without contacting the server.
+   */
+  public WfsResponseCache(Path directory, long maxBytes, long revalidateAfterMillis,
+      boolean offline) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.revalidateAfterMillis = revalidateAfterMillis;
+    this.offline = offline;
+    Files.createDirectories(directory);
+    loadEntries();
+  }
+
+  private void loadEntries() throws IOException {
+
+    // Find the bodies, ordered by the time they were last used.
+    final TreeMap<FileTime, List<Path>> bodiesByAccess = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        final String fileName = file.getFileName().toString();
+        if (fileName.endsWith(TEMPORARY_SUFFIX)) {
+          Files.deleteIfExists(file);
+        } else if (fileName.endsWith(BODY_SUFFIX)) {
+          bodiesByAccess.computeIfAbsent(Files.getLastModifiedTime(file),
+              time -> new ArrayList<>()).add(file);
+        }
+      }
+    }
+
+    // Register the complete entries.
+    synchronized (this) {
+      for (List<Path> bodies : bodiesByAccess.values()) {
+        for (Path body : bodies) {
+          final String fileName = body.getFileName().toString();
+          final String key = fileName.substring(0, fileName.length() - BODY_SUFFIX.length());
+          if (Files.exists(getPropertiesFile(key))) {
+            final long size = Files.size(body);
+            entrySizes.put(key, size);
+            totalBytes += size;
+          }
+        }
+      }
+      evict();
+    }
+  }
+
+  public boolean isOffline() {
+    return offline;
+  }
+
+  /**
+   * Returns the entry for the URL, or null if there is none.
+   */
+  Entry get(URL url) throws IOException {
+    final String key = getKey(url);
+    synchronized (this) {
+      if (entrySizes.get(key) == null) {
+        missCount.incrementAndGet();
+        return null;
+      }
+    }
+    final Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(getPropertiesFile(key),
+        StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    } catch (NoSuchFileException e) {
+      remove(key);
+      missCount.incrementAndGet();
+      return null;
+    }
+    return new Entry(key, properties);
+  }
+
+  /**
+   * Starts storing the response for the URL. The response is only stored when the writer is
+   * committed.
+   */
+  BodyWriter store(URL url, String eTag, String lastModified) throws IOException {
+    return new BodyWriter(getKey(url), url, eTag, lastModified);
+  }
+
+  private synchronized void remove(String key) {
+    final Long size = entrySizes.remove(key);
+    if (size != null) {
+      totalBytes -= size;
+    }
+  }
+
+  private synchronized void evict() throws IOException {
+    final Iterator<Map.Entry<String, Long>> iterator = entrySizes.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      final Map.Entry<String, Long> entry = iterator.next();
+      iterator.remove();
+      totalBytes -= entry.getValue();
+      Files.deleteIfExists(getPropertiesFile(entry.getKey()));
+      Files.deleteIfExists(getBodyFile(entry.getKey()));
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  private Path writeProperties(String key, Properties properties) throws IOException {
+    final Path result = Files.createTempFile(directory, key,
+        PROPERTIES_SUFFIX + TEMPORARY_SUFFIX);
+    try (Writer writer = Files.newBufferedWriter(result, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    return result;
+  }
+
+  private Path getBodyFile(String key) {
+    return directory.resolve(key + BODY_SUFFIX);
+  }
+
+  private Path getPropertiesFile(String key) {
+    return directory.resolve(key + PROPERTIES_SUFFIX);
+  }
+
+  /**
+   * Returns a key for the URL that can be used as file name: the SHA-256 of the normalized URL.
+   */
+  static String getKey(URL url) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(normalize(url).getBytes(StandardCharsets.UTF_8));
+      final StringBuilder result = new StringBuilder(2 * digest.length);
+      for (byte b : digest) {
+        result.append(String.format("%02x", b & 0xff));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available.", e);
+    }
+  }
+
+  /**
+   * Normalizes the URL so that equivalent requests get the same key: the scheme and host are
+   * lower cased, a default port is dropped and the query parameters are sorted by (case
+   * insensitive) name, as WFS parameter names are case insensitive.
+   */
+  static String normalize(URL url) {
+    final StringBuilder result = new StringBuilder();
+    result.append(url.getProtocol().toLowerCase(Locale.ROOT)).append("://")
+        .append(url.getHost().toLowerCase(Locale.ROOT));
+    if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+      result.append(':').append(url.getPort());
+    }
+    result.append(url.getPath().isEmpty() ? "/" : url.getPath());
+    if (url.getQuery() != null && !url.getQuery().isEmpty()) {
+      final TreeMap<String, List<String>> parameters = new TreeMap<>();
+      for (String parameter : url.getQuery().split("&")) {
+        if (!parameter.isEmpty()) {
+          final int separator = parameter.indexOf('=');
+          final String name = separator < 0 ? parameter : parameter.substring(0, separator);
+          parameters.computeIfAbsent(name.toLowerCase(Locale.ROOT), key -> new ArrayList<>())
+              .add(separator < 0 ? "" : parameter.substring(separator + 1));
+        }
+      }
+      char separator = '?';
+      for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+        for (String value : parameter.getValue()) {
+          result.append(separator).append(parameter.getKey()).append('=').append(value);
+          separator = '&';
+        }
+      }
+    }
+    return result.toString();
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getRevalidationCount() {
+    return revalidationCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public synchronized long getSize() {
+    return totalBytes;
+  }
+
+  /**
+   * A cached response.
+   */
+  class Entry {
+
+    private final String key;
+    private final Properties properties;
+
+    private Entry(String key, Properties properties) {
+      this.key = key;
+      this.properties = properties;
+    }
+
+    String getETag() {
+      return properties.getProperty("etag");
+    }
+
+    String getLastModified() {
+      return properties.getProperty("lastModified");
+    }
+
+    /**
+     * Whether the response was confirmed recently enough to serve it without revalidation.
+     */
+    boolean isFresh() {
+      final long confirmed = Long.parseLong(properties.getProperty("confirmed", "0"));
+      return System.currentTimeMillis() - confirmed < revalidateAfterMillis;
+    }
+
+    /**
+     * Records that the server confirmed that the response is still valid.
+     */
+    void confirm() throws IOException {
+      revalidationCount.incrementAndGet();
+      properties.setProperty("confirmed", Long.toString(System.currentTimeMillis()));
+      final Path temporaryFile = writeProperties(key, properties);
+      Files.move(temporaryFile, getPropertiesFile(key), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens the (decompressed) body.
+     */
+    InputStream open() throws IOException {
+      final Path body = getBodyFile(key);
+      final InputStream result;
+      try {
+        result = new GZIPInputStream(Files.newInputStream(body));
+      } catch (NoSuchFileException e) {
+        remove(key);
+        throw new FileNotFoundException("WFS response was evicted from the cache.");
+      }
+      synchronized (WfsResponseCache.this) {
+        entrySizes.get(key);
+      }
+      Files.setLastModifiedTime(body, FileTime.fromMillis(System.currentTimeMillis()));
+      hitCount.incrementAndGet();
+      return result;
+    }
+  }
+
+  /**
+   * Writes a response body to the cache while it is read.
+   */
+  class BodyWriter {
+
+    private final String key;
+    private final Properties properties = new Properties();
+    private final Path temporaryFile;
+    private final OutputStream output;
+
+    private BodyWriter(String key, URL url, String eTag, String lastModified)
+        throws IOException {
+      this.key = key;
+      properties.setProperty("url", url.toString());
+      if (eTag != null) {
+        properties.setProperty("etag", eTag);
+      }
+      if (lastModified != null) {
+        properties.setProperty("lastModified", lastModified);
+      }
+      this.temporaryFile = Files.createTempFile(directory, key, BODY_SUFFIX + TEMPORARY_SUFFIX);
+      this.output = new GZIPOutputStream(Files.newOutputStream(temporaryFile));
+    }
+
+    void write(byte[] buffer, int offset, int length) throws IOException {
+      output.write(buffer, offset, length);
+    }
+
+    /**
+     * Stores the body, replacing an earlier response for the same URL.
+     */
+    void commit() throws IOException {
+      output.close();
+      properties.setProperty("confirmed", Long.toString(System.currentTimeMillis()));
+      final Path temporaryPropertiesFile = writeProperties(key, properties);
+      synchronized (WfsResponseCache.this) {
+        remove(key);
+        Files.move(temporaryFile, getBodyFile(key), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temporaryPropertiesFile, getPropertiesFile(key),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final long size = Files.size(getBodyFile(key));
+        entrySizes.put(key, size);
+        totalBytes += size;
+        evict();
+      }
+    }
+
+    /**
+     * Drops the body, for instance because it was not read completely.
+     */
+    void discard() throws IOException {
+      try {
+        output.close();
+      } finally {
+        Files.deleteIfExists(temporaryFile);
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package choloc.app.streetfinder;
+
+import choloc.app.common.DaemonThreadFactory;
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import choloc.app.streetfinder.GeoManipulator.RdPoint;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+class WfsStreetSource implements StreetSource {
+
+  static final String FEATURE_NAME = "wegvakken";
+
+  private static final String GML_NAMESPACE = "http://www.opengis.net/gml/3.2";
+
+  private static final String URL_TEMPLATE = "https://geodata.nationaalgeoregister.nl/nwbwegen/wfs"
+      + "?REQUEST=GetFeature"
+      + "&VERSION=2.0.0"
+      + "&SERVICE=WFS"
+      + "&typenames=nwbwegen:wegvakken"
+      + "&propertyname=stt_naam,gme_naam,wpsnaamnen,geom"
+      + "&count=200"
+      + "&bbox=%s,%s,%s,%s";
+
+  private static final String HITS_URL_TEMPLATE =
+      "https://geodata.nationaalgeoregister.nl/nwbwegen/wfs"
+          + "?REQUEST=GetFeature"
+          + "&VERSION=2.0.0"
+          + "&SERVICE=WFS"
+          + "&typenames=nwbwegen:wegvakken"
+          + "&resultType=hits"
+          + "&bbox=%s,%s,%s,%s";
+
+  // Searches with a smaller box are always fetched in one go: the extra round trip for counting
+  // wouldn't pay off.
+  private static final double MIN_PARTITIONED_SIZE_IN_METERS = 1500;
+  private static final int FEATURES_PER_PARTITION = 600;
+  private static final int MAX_PARTITIONS_PER_SIDE = 4;
+
+  private static final int DEFAULT_FETCH_THREADS = 4;
+  private static ExecutorService defaultExecutor = null;
+
+  private final ExecutorService executor;
+
+  WfsStreetSource() {
+    this(null);
+  }
+
+  /**
+   * Creates a source that fetches the partitions of large searches with the given executor, or a
+   * shared default executor if none is given. The partitions that the executor hasn't started
+   * yet are fetched on the searching thread, so any executor will do.
+   */
+  WfsStreetSource(ExecutorService executor) {
+    this.executor = executor == null ? getDefaultExecutor() : executor;
+  }
+
+  private static synchronized ExecutorService getDefaultExecutor() {
+    if (defaultExecutor == null) {
+      defaultExecutor = Executors.newFixedThreadPool(DEFAULT_FETCH_THREADS,
+          new DaemonThreadFactory("wfs-fetch"));
+    }
+    return defaultExecutor;
+  }
+
+  @Override
+  public List<ParsedStreet> findStreets(BoundingBox boundingBox)
+      throws IOException, XMLStreamException {
+    final List<ParsedStreet> result = new ArrayList<>();
+    findStreets(boundingBox, null, result::add);
+    return result;
+  }
+
+  @Override
+  public boolean findStreets(BoundingBox boundingBox, Deadline deadline,
+      Consumer<ParsedStreet> consumer) throws IOException, XMLStreamException {
+
+    // Small searches and searches with few features are fetched in one go.
+    final double size = Math.max(boundingBox.getUpperRight().x - boundingBox.getLowerLeft().x,
+        boundingBox.getUpperRight().y - boundingBox.getLowerLeft().y);
+    if (size < MIN_PARTITIONED_SIZE_IN_METERS) {
+      return fetchStreets(boundingBox, deadline, consumer);
+    }
+    final long hitCount = GeoManipulator.obtainWfsHitCount(createUrl(HITS_URL_TEMPLATE,
+        boundingBox), deadline);
+
+    // If the server doesn't say how many features there are, the search isn't split.
+    final int partitionsPerSide = hitCount < 0 ? 1 : (int) Math.min(MAX_PARTITIONS_PER_SIDE,
+        Math.ceil(Math.sqrt((double) hitCount / FEATURES_PER_PARTITION)));
+    if (partitionsPerSide <= 1) {
+      return fetchStreets(boundingBox, deadline, consumer);
+    }
+
+    // Features on the seams are returned for more than one partition.
+    final Set<String> featureIds = ConcurrentHashMap.newKeySet();
+    final Consumer<ParsedStreet> uniqueConsumer = street -> {
+      if (street.getFeatureId() == null || featureIds.add(street.getFeatureId())) {
+        consumer.accept(street);
+      }
+    };
+
+    // Fetch the partitions concurrently. Without a deadline, the features of each partition are
+    // passed on when all are in, in partition order. With a deadline, they are passed on as soon
+    // as they come in, so that nothing is lost when time runs out.
+    final List<Callable<List<ParsedStreet>>> partitions = new ArrayList<>();
+    final double partitionWidth =
+        (boundingBox.getUpperRight().x - boundingBox.getLowerLeft().x) / partitionsPerSide;
+    final double partitionHeight =
+        (boundingBox.getUpperRight().y - boundingBox.getLowerLeft().y) / partitionsPerSide;
+    for (int column = 0; column < partitionsPerSide; column++) {
+      for (int row = 0; row < partitionsPerSide; row++) {
+        final double minX = boundingBox.getLowerLeft().x + column * partitionWidth;
+        final double minY = boundingBox.getLowerLeft().y + row * partitionHeight;
+        final double maxX = column == partitionsPerSide - 1 ? boundingBox.getUpperRight().x
+            : minX + partitionWidth;
+        final double maxY = row == partitionsPerSide - 1 ? boundingBox.getUpperRight().y
+            : minY + partitionHeight;
+        final BoundingBox partition = new BoundingBox(new RdPoint(minX, minY),
+            new RdPoint(maxX, maxY));
+        partitions.add(() -> {
+          final List<ParsedStreet> streets = new ArrayList<>();
+          final boolean complete = fetchStreets(partition, deadline,
+              deadline == null ? streets::add : uniqueConsumer);
+          return complete ? streets : null;
+        });
+      }
+    }
+
+    // Wait for the partitions.
+    boolean complete = true;
+    for (List<ParsedStreet> streets : GeoManipulator.fetchAll(executor, partitions)) {
+      if (streets == null) {
+        complete = false;
+      } else if (deadline == null) {
+        streets.forEach(uniqueConsumer);
+      }
+    }
+    return complete;
+  }
+
+  private static boolean fetchStreets(BoundingBox boundingBox, Deadline deadline,
+      Consumer<ParsedStreet> consumer) throws IOException, XMLStreamException {
+    return GeoManipulator.obtainWfsData(createUrl(URL_TEMPLATE, boundingBox), FEATURE_NAME,
+        WfsStreetSource::readStreet, WfsStreetSource::fixNextUrl, deadline, consumer);
+  }
+
+  private static URL createUrl(String template, BoundingBox boundingBox)
+      throws MalformedURLException {
+    return new URL(String
+        .format(template, "" + boundingBox.getLowerLeft().x, "" + boundingBox.getLowerLeft().y,
+            "" + boundingBox.getUpperRight().x,
+            "" + boundingBox.getUpperRight().y));
+  }
+
+  private static String fixNextUrl(String nextUrl) {
+    return nextUrl.replace(":/cgi-bin/mapserv.fcgi", "/nwbwegen/wfs");
+  }
+
+  static ParsedStreet readStreet(XMLStreamReader reader) throws XMLStreamException {
+    final String featureId = reader.getAttributeValue(GML_NAMESPACE, "id");
+    final Map<String, String> properties = GeoManipulator
+        .readFeatureProperties(reader, "stt_naam", "wpsnaamnen", "gme_naam", "posList");
+    final String posList = properties.get("posList");
+    if (posList == null) {
+      throw new IllegalArgumentException("Polygon is not valid.");
+    }
+    return new ParsedStreet(featureId, properties.get("stt_naam"), properties.get("wpsnaamnen"),
+        properties.get("gme_naam"), PosListParser.parse(posList));
+  }
+}
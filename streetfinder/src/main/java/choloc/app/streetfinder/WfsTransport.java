@@ -0,0 +1,18 @@
+package choloc.app.streetfinder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Obtains the responses of WFS requests. By default, the requests are sent to the server; see
+ * {@link GeoManipulator#setWfsTransport} for recording the responses or replaying recorded ones.
+ */
+public interface WfsTransport {
+
+  /**
+   * Returns the body of the response to a GET request for the URL. With a deadline, the request
+   * should time out when it passes. The caller closes the stream.
+   */
+  InputStream open(URL url, Deadline deadline) throws IOException;
+}
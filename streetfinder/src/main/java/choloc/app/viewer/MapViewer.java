@@ -1,5 +1,6 @@
 package choloc.app.viewer;
 
+import choloc.app.common.DaemonThreadFactory;
 import choloc.app.solr.Connector;
 import java.awt.Color;
 import java.awt.Point;
@@ -7,15 +8,24 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.IOException;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.xml.parsers.ParserConfigurationException;
+import javax.swing.SwingUtilities;
+import javax.xml.stream.XMLStreamException;
 
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.operation.TransformException;
@@ -24,18 +34,39 @@ import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.MapMarkerDot;
 import org.openstreetmap.gui.jmapviewer.interfaces.ICoordinate;
 import org.openstreetmap.gui.jmapviewer.interfaces.MapMarker;
-import org.xml.sax.SAXException;
 
 import choloc.app.streetfinder.Street;
+import choloc.app.streetfinder.StreetCellCache;
 import choloc.app.streetfinder.StreetFinder;
 
 public class MapViewer extends JMapViewer {
 
   private static final long serialVersionUID = 8678292754866282345L;
 
+  private static final int MAX_STREETS = 50;
+  private static final int SEARCH_RADIUS_IN_METERS = 500;
+
+  // The records of the streets are counted in the background, without highlighting.
+  private static final ExecutorService COUNT_EXECUTOR = Executors.newFixedThreadPool(2,
+      new DaemonThreadFactory("solr-counts"));
+
+  // Highlights of this many streets, those with the most records, are queried before they are
+  // clicked. A search prefetches them in one batch.
+  private static final int PREFETCH_STREETS = 20;
+  private static final ExecutorService PREFETCH_EXECUTOR = Executors.newFixedThreadPool(2,
+      new DaemonThreadFactory("solr-prefetch"));
+
+  private static final StreetCellCache STREET_CACHE = new StreetCellCache(250, 64L << 20,
+      TimeUnit.HOURS.toMillis(1));
+
+  private transient StreetFinder streetFinder = null;
   private transient MapMarkerDot myPositionMarker = null;
   private transient List<ContentPosition> contentPositions = Collections.emptyList();
-  private transient MapMarkerDot currentContentPosition = null;
+  private transient ContentPosition currentContentPosition = null;
+  private transient Future<?> countQuery = null;
+  private transient List<Street> prefetchedStreets = Collections.emptyList();
+  private transient Future<Map<Street, LinkedHashMap<String, String>>> prefetchedHighlights =
+      null;
 
   private final transient Consumer<String> resultSetter;
 
@@ -87,20 +118,14 @@ public class MapViewer extends JMapViewer {
 
     // Set the current position
     if (currentContentPosition != null) {
-      currentContentPosition.setBackColor(Color.YELLOW);
+      currentContentPosition.resetColor();
     }
-    currentContentPosition = position.getPosition();
-    currentContentPosition.setBackColor(Color.BLUE);
+    currentContentPosition = position;
+    currentContentPosition.getPosition().setBackColor(Color.BLUE);
     repaint();
 
-    // HACK: change the placename so that it doesn't contain '-'. Helps for the Hague. In the future,
-    // we should probably exclude all characters that are not roman letters (and remove diacritics).
-    final String placeName =
-        position.getStreet().getPlaceName().replace("-", " ");
-
-    // Contact the Solr.
-    final Map<String, String> searchResults = new Connector()
-        .getSolrFTHighlights(position.getStreet().getStreetName(), placeName);
+    // Obtain the highlights: they may be prefetched.
+    final Map<String, String> searchResults = getHighlights(position.getStreet());
 
     // Start HTML document
     final StringBuilder resultBuilder = new StringBuilder("<!DOCTYPE html><html><body>");
@@ -136,9 +161,9 @@ public class MapViewer extends JMapViewer {
     final Coordinate here = clone(myPositionMarker.getCoordinate());
     final List<Street> streetResults;
     try {
-      streetResults = new StreetFinder()
-          .findStreetsSortedByDistance(here.getLat(), here.getLon(), 500);
-    } catch (TransformException | IOException | ParserConfigurationException | SAXException | FactoryException e) {
+      streetResults = getStreetFinder()
+          .findNearestStreets(here.getLat(), here.getLon(), MAX_STREETS, SEARCH_RADIUS_IN_METERS);
+    } catch (TransformException | IOException | XMLStreamException | FactoryException e) {
       e.printStackTrace();
       return;
     }
@@ -146,6 +171,8 @@ public class MapViewer extends JMapViewer {
     // Create list of content positions.
     contentPositions = streetResults.stream().map(ContentPosition::new)
         .collect(Collectors.toList());
+    cancelPrefetch();
+    queryCounts(contentPositions);
 
     // Remove old positions
     removeAllMapMarkers();
@@ -156,6 +183,10 @@ public class MapViewer extends JMapViewer {
     myPositionMarker.setBackColor(Color.GREEN);
 
     // Add new markers
+    showMarkers();
+  }
+
+  private void showMarkers() {
     final List<MapMarker> markers = Stream
         .concat(Stream.of(myPositionMarker),
             contentPositions.stream().map(ContentPosition::getPosition))
@@ -163,19 +194,131 @@ public class MapViewer extends JMapViewer {
     setMapMarkerList(markers);
   }
 
+  /**
+   * Starts counting the records of the streets in the background (in batches, without
+   * highlighting). When they are counted, the markers are coloured by their count, the streets
+   * with the most records are put on top and their highlights are prefetched. The counting of the
+   * previous search is cancelled.
+   */
+  private void queryCounts(List<ContentPosition> positions) {
+    if (countQuery != null) {
+      countQuery.cancel(true);
+    }
+    countQuery = COUNT_EXECUTOR.submit(() -> {
+      final Map<ContentPosition, Long> counts = new Connector().getSolrFTCounts(positions,
+          position -> position.getStreet().getStreetName(),
+          position -> getSolrPlaceName(position.getStreet()));
+      SwingUtilities.invokeLater(() -> showCounts(positions, counts));
+    });
+  }
+
+  private void showCounts(List<ContentPosition> positions, Map<ContentPosition, Long> counts) {
+
+    // Maybe there has been a new search in the meantime.
+    if (positions != contentPositions) {
+      return;
+    }
+
+    // Colour the markers.
+    final long maxCount = counts.values().stream().filter(Objects::nonNull)
+        .mapToLong(Long::longValue).max().orElse(0);
+    positions.forEach(position -> position.setCount(counts.get(position), maxCount));
+    if (currentContentPosition != null) {
+      currentContentPosition.getPosition().setBackColor(Color.BLUE);
+    }
+
+    // Put the streets with the most records on top (last position in list is top).
+    contentPositions = positions.stream()
+        .sorted(Comparator.comparingLong(ContentPosition::getCount))
+        .collect(Collectors.toList());
+    showMarkers();
+    prefetchHighlights(positions);
+  }
+
+  /**
+   * Starts querying the highlights of the streets with the most records in the background, in
+   * one batch, so that clicking them shows the results right away. Streets without records are
+   * skipped. The batch of the previous search is cancelled.
+   */
+  private void prefetchHighlights(List<ContentPosition> positions) {
+    cancelPrefetch();
+    final List<Street> batch = positions.stream()
+        .filter(position -> position.getCount() > 0)
+        .sorted(Comparator.comparingLong(ContentPosition::getCount).reversed())
+        .limit(PREFETCH_STREETS)
+        .map(ContentPosition::getStreet)
+        .collect(Collectors.toList());
+    if (batch.isEmpty()) {
+      return;
+    }
+    prefetchedStreets = batch;
+    prefetchedHighlights = PREFETCH_EXECUTOR.submit(() -> new Connector()
+        .getSolrFTHighlights(batch, Street::getStreetName, MapViewer::getSolrPlaceName));
+  }
+
+  private void cancelPrefetch() {
+    if (prefetchedHighlights != null) {
+      prefetchedHighlights.cancel(true);
+      prefetchedHighlights = null;
+    }
+    prefetchedStreets = Collections.emptyList();
+  }
+
+  private Map<String, String> getHighlights(Street street) {
+    final Future<Map<Street, LinkedHashMap<String, String>>> prefetched = prefetchedHighlights;
+    if (prefetched != null && prefetchedStreets.contains(street)) {
+      try {
+        final Map<String, String> result = prefetched.get().get(street);
+        if (result != null) {
+          return result;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        e.printStackTrace();
+      }
+    }
+    return queryHighlights(street);
+  }
+
+  private static Map<String, String> queryHighlights(Street street) {
+    return new Connector().getSolrFTHighlights(street.getStreetName(), getSolrPlaceName(street));
+  }
+
+  private static String getSolrPlaceName(Street street) {
+
+    // HACK: change the placename so that it doesn't contain '-'. Helps for the Hague. In the future,
+    // we should probably exclude all characters that are not roman letters (and remove diacritics).
+    return street.getPlaceName().replace("-", " ");
+  }
+
+  private StreetFinder getStreetFinder() throws FactoryException {
+    if (streetFinder == null) {
+      streetFinder = new StreetFinder(STREET_CACHE);
+    }
+    return streetFinder;
+  }
+
   static final Coordinate clone(ICoordinate coordinate) {
     return new Coordinate(coordinate.getLat(), coordinate.getLon());
   }
 
   private static class ContentPosition {
 
+    private static final Color NO_RECORDS_COLOR = Color.LIGHT_GRAY;
+    private static final Color FEW_RECORDS_COLOR = Color.YELLOW;
+    private static final Color MOST_RECORDS_COLOR = new Color(255, 96, 0);
+
     private final MapMarkerDot position;
     private final Street street;
+    private long count = -1;
+    private Color color = FEW_RECORDS_COLOR;
 
     public ContentPosition(Street street) {
       this.position = new MapMarkerDot(null, street.getStreetName(),
           new Coordinate(street.getLat(), street.getLon()));
-      this.position.setBackColor(Color.YELLOW);
+      this.position.setBackColor(color);
       this.street = street;
     }
 
@@ -183,6 +326,42 @@ public class MapViewer extends JMapViewer {
       return street;
     }
 
+    /**
+     * Returns the number of records, or -1 if they haven't been counted.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Sets the number of records (or null if they couldn't be counted) and colours the marker:
+     * grey without records, and from yellow to orange for more records.
+     */
+    public void setCount(Long count, long maxCount) {
+      this.count = count == null ? -1 : count;
+      if (this.count == 0) {
+        color = NO_RECORDS_COLOR;
+      } else if (this.count > 0) {
+        final double fraction = Math.log1p(this.count) / Math.log1p(Math.max(1, maxCount));
+        color = new Color(
+            interpolate(FEW_RECORDS_COLOR.getRed(), MOST_RECORDS_COLOR.getRed(), fraction),
+            interpolate(FEW_RECORDS_COLOR.getGreen(), MOST_RECORDS_COLOR.getGreen(), fraction),
+            interpolate(FEW_RECORDS_COLOR.getBlue(), MOST_RECORDS_COLOR.getBlue(), fraction));
+      }
+      if (this.count >= 0) {
+        position.setName(street.getStreetName() + " (" + this.count + ")");
+      }
+      resetColor();
+    }
+
+    public void resetColor() {
+      position.setBackColor(color);
+    }
+
+    private static int interpolate(int from, int to, double fraction) {
+      return (int) Math.round(from + Math.min(1, fraction) * (to - from));
+    }
+
     public MapMarkerDot getPosition() {
       return position;
     }
@@ -1,5 +1,6 @@
 package choloc.app.viewer;
 
+import choloc.app.streetfinder.CrsTransforms;
 import java.awt.BorderLayout;
 
 import javax.swing.JButton;
@@ -18,6 +19,9 @@ public class MapViewerApplication {
 
   public static void main(String[] args) {
 
+    // Prepare the coordinate transforms while the user finds a position
+    CrsTransforms.warmUpInBackground();
+
     // Create frame
     final JFrame frame = new JFrame();
     frame.setLayout(new BorderLayout());
@@ -0,0 +1,83 @@
+package choloc.app.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LruCacheTest {
+
+  @Test
+  public void evictsLeastRecentlyUsedEntriesByWeight() {
+    final LruCache<String, String> cache = new LruCache<>(10, 0, String::length);
+    cache.put("a", "aaaa");
+    cache.put("b", "bbb");
+    cache.put("c", "cc");
+    assertEquals(9, cache.getWeight());
+
+    // Using a makes b the least recently used entry.
+    assertEquals("aaaa", cache.get("a"));
+    cache.put("d", "ddd");
+    assertNull(cache.get("b"));
+    assertEquals("aaaa", cache.get("a"));
+    assertEquals("cc", cache.get("c"));
+    assertEquals("ddd", cache.get("d"));
+    assertEquals(3, cache.size());
+    assertEquals(9, cache.getWeight());
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(4, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void replacesValues() {
+    final LruCache<String, String> cache = new LruCache<>(10, 0, String::length);
+    cache.put("a", "aaaa");
+    cache.put("a", "aa");
+    assertEquals("aa", cache.get("a"));
+    assertEquals(1, cache.size());
+    assertEquals(2, cache.getWeight());
+  }
+
+  @Test
+  public void doesNotKeepValuesHeavierThanTheMaximum() {
+    final LruCache<String, String> cache = new LruCache<>(10, 0, String::length);
+    cache.put("a", "aaaa");
+    cache.put("b", "bbb");
+    cache.put("a", "aaaaaaaaaaa");
+    assertNull(cache.get("a"));
+    assertEquals("bbb", cache.get("b"));
+    assertEquals(3, cache.getWeight());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  @Test
+  public void expiresEntries() throws InterruptedException {
+    final LruCache<String, String> cache = new LruCache<>(10, 1, String::length);
+    cache.put("a", "aaaa");
+    Thread.sleep(20);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void removesAndClears() {
+    final LruCache<String, String> cache = new LruCache<>(10, 0, String::length);
+    cache.put("a", "aaaa");
+    cache.put("b", "bbb");
+    cache.remove("a");
+    assertNull(cache.get("a"));
+    assertEquals(3, cache.getWeight());
+    cache.clear();
+    assertNull(cache.get("b"));
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidMaximumWeight() {
+    new LruCache<String, String>(0, 0, String::length);
+  }
+}
@@ -0,0 +1,115 @@
+package choloc.app.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SolrResultTest {
+
+    private static final String RESPONSE = "{"
+            + "\"responseHeader\":{\"status\":0,\"params\":{\"q\":\"x\"}},"
+            + "\"response\":{\"numFound\":3,\"start\":0,\"docs\":[{\"europeana_id\":\"id1\"}]},"
+            + "\"highlighting\":{"
+            + "\"id1\":{\"fulltext.nl\":[\"a <em>b</em>\",\"c <em>b</em>\"],\"title\":[]},"
+            + "\"id2\":{\"fulltext.nl\":\"d <em>e</em>\"},"
+            + "\"id3\":{\"fulltext.nl\":[null,\"f <em>e</em>\"]}},"
+            + "\"facet_counts\":{\"facet_queries\":{\"fulltext:b\":1,\"fulltext:e\":2},"
+            + "\"facet_fields\":{}}}";
+
+    private static final String GROUPED_RESPONSE = "{"
+            + "\"grouped\":{"
+            + "\"fulltext:b\":{\"matches\":3,\"doclist\":{\"numFound\":1,\"docs\":["
+            + "{\"europeana_id\":\"id1\",\"title\":\"t\"}]}},"
+            + "\"fulltext:e\":{\"matches\":3,\"doclist\":{\"numFound\":2,\"docs\":["
+            + "{\"europeana_id\":\"id2\"},{\"europeana_id\":\"id3\"}]}},"
+            + "\"fulltext:g\":{\"matches\":3,\"doclist\":{\"numFound\":0,\"docs\":[]}}},"
+            + "\"highlighting\":{"
+            + "\"id1\":{\"fulltext.nl\":[\"a <em>b</em>\"]},"
+            + "\"id2\":{\"fulltext.nl\":[\"d <em>e</em>\"]},"
+            + "\"id3\":{\"fulltext.nl\":[\"f <em>e</em>\"]}}}";
+
+    @Test
+    public void readsNumFoundAndHighlights(){
+        SolrResult result = new SolrResult(RESPONSE);
+        assertEquals(3, result.getNumFound());
+        List<Highlight> highlights = result.getHighlights();
+        assertEquals(3, highlights.size());
+        assertHighlight(highlights.get(0), "id1", "fulltext.nl", "a <em>b</em>", "c <em>b</em>");
+        assertHighlight(highlights.get(1), "id2", "fulltext.nl", "d <em>e</em>");
+        assertHighlight(highlights.get(2), "id3", "fulltext.nl", "f <em>e</em>");
+        assertEquals("{id1 (fulltext.nl)=a <em>b</em> ... c <em>b</em>, "
+                + "id2 (fulltext.nl)=d <em>e</em>, id3 (fulltext.nl)=f <em>e</em>}",
+                result.parseJson().toString());
+        assertEquals(RESPONSE, result.getJsonResult());
+    }
+
+    @Test
+    public void readsFacetQueryCounts(){
+        SolrResult result = new SolrResult(RESPONSE);
+        assertEquals(Long.valueOf(1), result.getCount("fulltext:b"));
+        assertEquals(Long.valueOf(2), result.getCount("fulltext:e"));
+        assertNull(result.getCount("fulltext:g"));
+    }
+
+    @Test
+    public void readsGroups(){
+        SolrResult result = new SolrResult(GROUPED_RESPONSE);
+        assertEquals(0, result.getNumFound());
+        assertEquals(1, result.getHighlights("fulltext:b").size());
+        assertHighlight(result.getHighlights("fulltext:b").get(0), "id1", "fulltext.nl",
+                "a <em>b</em>");
+        assertEquals(2, result.getHighlights("fulltext:e").size());
+        assertEquals("id2", result.getHighlights("fulltext:e").get(0).getEuropeanaId());
+        assertEquals("id3", result.getHighlights("fulltext:e").get(1).getEuropeanaId());
+        assertEquals(Collections.emptyList(), result.getHighlights("fulltext:g"));
+        assertNull(result.getHighlights("fulltext:h"));
+    }
+
+    @Test
+    public void parsesReaderLikeString() throws IOException {
+        SolrResult expected = new SolrResult(RESPONSE);
+        SolrResult result = SolrResult.parse(new StringReader(RESPONSE));
+        assertEquals(expected.getNumFound(), result.getNumFound());
+        assertEquals(SolrResult.toMap(expected.getHighlights()),
+                SolrResult.toMap(result.getHighlights()));
+        assertEquals(expected.getCount("fulltext:e"), result.getCount("fulltext:e"));
+        assertNull(result.getJsonResult());
+    }
+
+    @Test
+    public void readsEmptyResponse(){
+        SolrResult result = new SolrResult("{}");
+        assertEquals(0, result.getNumFound());
+        assertEquals(Collections.emptyList(), result.getHighlights());
+        assertNull(result.getHighlights("fulltext:b"));
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void rejectsInvalidResponse(){
+        new SolrResult("{\"response\":{\"numFound\":");
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void rejectsUnexpectedResponse(){
+        new SolrResult("{\"response\":{\"numFound\":\"many\"}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnexpectedResponseFromReader() throws IOException {
+        SolrResult.parse(new StringReader("[1, 2]"));
+    }
+
+    private static void assertHighlight(Highlight highlight, String europeanaId, String field,
+            String... snippets){
+        assertEquals(europeanaId, highlight.getEuropeanaId());
+        assertEquals(field, highlight.getField());
+        assertEquals(Arrays.asList(snippets), highlight.getSnippets());
+    }
+}
@@ -0,0 +1,100 @@
+package choloc.app.streetfinder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class PosListParserTest {
+
+  private static final int RANDOM_INPUT_COUNT = 200_000;
+
+  @Test
+  public void parsesInterleavedCoordinates() {
+    assertArrayEquals(new double[]{155000.5, 463000.25, 155001, -0.125},
+        PosListParser.parse("  155000.5 463000.25\n155001\t-0.125 "), 0);
+  }
+
+  @Test
+  public void matchesParseDoubleOnRandomInput() {
+    final Random random = new Random(28992);
+    for (int i = 0; i < RANDOM_INPUT_COUNT; i++) {
+      final String first = randomNumber(random);
+      final String second = randomNumber(random);
+      final double[] parsed = PosListParser.parse(first + " " + second);
+      assertSameBits(first, Double.parseDouble(first), parsed[0]);
+      assertSameBits(second, Double.parseDouble(second), parsed[1]);
+    }
+  }
+
+  @Test
+  public void matchesParseDoubleOnEdgeCases() {
+    final String[] numbers = {"0", "-0", "+0", "-0.0", "0.", ".5", "-.5", "+1.5", "1e3", "1.5E-3",
+        "9007199254740991", "9007199254740992", "9007199254740993", "0.1", "0.3",
+        "123456.789012345678901234", "0.0000000000000000000001", "0.00000000000000000000001",
+        "179769313486231570000000000000000000000", "4.9e-324", "NaN", "-Infinity"};
+    for (String number : numbers) {
+      assertSameBits(number, Double.parseDouble(number),
+          PosListParser.parse(number + " 0")[0]);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyList() {
+    PosListParser.parse(" \n ");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsOddCount() {
+    PosListParser.parse("1 2 3");
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void rejectsInvalidNumber() {
+    PosListParser.parse("1 2.3.4");
+  }
+
+  private static void assertSameBits(String number, double expected, double actual) {
+    assertEquals(number, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+  }
+
+  /**
+   * Returns a number as it could occur in a posList: mostly RD coordinates with a varying number
+   * of decimals, but also long mantissas, exponents and signs.
+   */
+  private static String randomNumber(Random random) {
+    final StringBuilder result = new StringBuilder();
+    switch (random.nextInt(4)) {
+      case 0:
+        result.append('-');
+        break;
+      case 1:
+        if (random.nextInt(4) == 0) {
+          result.append('+');
+        }
+        break;
+      default:
+        break;
+    }
+    final int integerDigits = random.nextInt(4) == 0 ? random.nextInt(20) : 1 + random.nextInt(6);
+    appendDigits(random, result, integerDigits);
+    if (integerDigits == 0 || random.nextBoolean()) {
+      result.append('.');
+      appendDigits(random, result, random.nextInt(4) == 0 ? random.nextInt(30) : random.nextInt(4));
+    }
+    if (integerDigits == 0 && result.charAt(result.length() - 1) == '.') {
+      result.append('0');
+    }
+    if (random.nextInt(20) == 0) {
+      result.append(random.nextBoolean() ? 'e' : 'E').append(random.nextInt(41) - 20);
+    }
+    return result.toString();
+  }
+
+  private static void appendDigits(Random random, StringBuilder builder, int count) {
+    for (int i = 0; i < count; i++) {
+      builder.append((char) ('0' + random.nextInt(10)));
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package choloc.app.streetfinder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RdNewTransformTest {
+
+  @Test
+  public void mapsTheOriginOfRdOnAmersfoort() {
+    assertArrayEquals(new double[]{52.15517440, 5.38720621},
+        RdNewTransform.RD_TO_WGS84.transform(155000, 463000), 0);
+    assertArrayEquals(new double[]{155000, 463000},
+        RdNewTransform.WGS84_TO_RD.transform(52.15517440, 5.38720621), 0);
+  }
+
+  /**
+   * The two polynomials are separate approximations, but they agree to within a centimeter over
+   * the whole of the Netherlands.
+   */
+  @Test
+  public void convertsBackAndForth() {
+    for (double x = 0; x <= 300000; x += 2500) {
+      for (double y = 300000; y <= 625000; y += 2500) {
+        final double[] wgs84 = RdNewTransform.RD_TO_WGS84.transform(x, y);
+        final double[] rd = RdNewTransform.WGS84_TO_RD.transform(wgs84[0], wgs84[1]);
+        assertEquals("x of " + x + ", " + y, x, rd[0], 0.01);
+        assertEquals("y of " + x + ", " + y, y, rd[1], 0.01);
+      }
+    }
+  }
+
+  @Test
+  public void convertsInBulkLikePointByPoint() {
+    final Random random = new Random(28992);
+    final double[] rd = new double[2 * 100];
+    for (int i = 0; i < rd.length; i += 2) {
+      rd[i] = random.nextDouble() * 300000;
+      rd[i + 1] = 300000 + random.nextDouble() * 325000;
+    }
+    final double[] wgs84 = new double[rd.length + 2];
+    RdNewTransform.RD_TO_WGS84.transform(rd, 0, wgs84, 2, 100);
+    for (int i = 0; i < rd.length; i += 2) {
+      assertArrayEquals(RdNewTransform.RD_TO_WGS84.transform(rd[i], rd[i + 1]),
+          new double[]{wgs84[i + 2], wgs84[i + 3]}, 0);
+    }
+
+    // In place
+    final double[] copy = rd.clone();
+    RdNewTransform.RD_TO_WGS84.transform(copy, copy, 100);
+    for (int i = 0; i < rd.length; i++) {
+      assertEquals(wgs84[i + 2], copy[i], 0);
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void rejectsPointsOutsideTheSource() {
+    RdNewTransform.RD_TO_WGS84.transform(new double[4], 2, new double[4], 0, 2);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void rejectsPointsOutsideTheDestination() {
+    RdNewTransform.WGS84_TO_RD.transform(new double[4], new double[2], 2);
+  }
+}
@@ -0,0 +1,153 @@
+package choloc.app.streetfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class SegmentIndexTest {
+
+  private static final int TRIAL_COUNT = 300;
+
+  @Test
+  public void visitsStreetsInOrderOfDistance() {
+    final List<ParsedStreet> streets = new ArrayList<>();
+    streets.add(street("a", "Kerkstraat", 100, 100, 200, 100));
+    streets.add(street("b", "Dorpsstraat", 100, 110));
+    streets.add(street("c", "Kerkstraat", 150, 90, 150, 80));
+    final SegmentIndex index = new SegmentIndex(streets);
+    assertEquals(2, index.getStreetCount());
+    assertEquals(3, index.getFeatureCount());
+    assertEquals(0, index.getStreetOfFeature(2));
+
+    final List<String> visits = new ArrayList<>();
+    index.visitNearestStreets(150, 95, Double.MAX_VALUE, (street, x, y, distance) -> {
+      visits.add(index.getStreetId(street).getStreetName() + " " + x + " " + y + " " + distance);
+      return true;
+    });
+    assertEquals(2, visits.size());
+    assertEquals("Kerkstraat 150.0 100.0 5.0", visits.get(0));
+    assertEquals("Dorpsstraat 100.0 110.0 " + Math.sqrt(50 * 50 + 15 * 15), visits.get(1));
+  }
+
+  @Test
+  public void matchesLinearScanOnRandomStreets() {
+    final Random random = new Random(28992);
+    for (int trial = 0; trial < TRIAL_COUNT; trial++) {
+
+      // A small grid makes ties in the distances likely.
+      final int gridSize = 5 + random.nextInt(50);
+      final List<ParsedStreet> streets = randomStreets(random, gridSize);
+      final SegmentIndex index = new SegmentIndex(streets);
+      final double x = 1000 + random.nextInt(gridSize + 10) - 5 + (trial % 2) * random.nextDouble();
+      final double y = 1000 + random.nextInt(gridSize + 10) - 5;
+      final double maxDistance = random.nextInt(3) == 0 ? random.nextInt(gridSize)
+          : Double.MAX_VALUE;
+      boolean[] featureFilter = null;
+      if (random.nextInt(3) == 0) {
+        featureFilter = new boolean[streets.size()];
+        for (int i = 0; i < featureFilter.length; i++) {
+          featureFilter[i] = random.nextBoolean();
+        }
+      }
+      final int limit = random.nextInt(4) == 0 ? 1 + random.nextInt(5) : Integer.MAX_VALUE;
+
+      final List<String> expected = scan(streets, x, y, maxDistance, featureFilter);
+      final List<String> actual = new ArrayList<>();
+      index.visitNearestStreets(x, y, maxDistance, featureFilter, (street, nearestX, nearestY,
+          distance) -> {
+        actual.add(format(street, nearestX, nearestY, distance));
+        return actual.size() < limit;
+      });
+      assertEquals("Trial " + trial,
+          expected.subList(0, Math.min(limit, expected.size())), actual);
+    }
+  }
+
+  @Test
+  public void visitsNothingWithoutStreets() {
+    new SegmentIndex(Collections.emptyList()).visitNearestStreets(0, 0, Double.MAX_VALUE,
+        (street, x, y, distance) -> {
+          throw new AssertionError("No street expected.");
+        });
+  }
+
+  /**
+   * Finds the nearest streets with a linear scan over all segments, doing the same arithmetic as
+   * the index, so that the results are exactly the same.
+   */
+  private static List<String> scan(List<ParsedStreet> streets, double x, double y,
+      double maxDistance, boolean[] featureFilter) {
+    final Map<StreetId, Integer> ordinals = new LinkedHashMap<>();
+    final Map<Integer, double[]> nearest = new LinkedHashMap<>();
+    int order = 0;
+    for (int feature = 0; feature < streets.size(); feature++) {
+      final ParsedStreet parsedStreet = streets.get(feature);
+      final int street = ordinals.computeIfAbsent(parsedStreet.getStreetId(),
+          key -> ordinals.size());
+      final double[] points = parsedStreet.getCoordinates();
+      for (int i = Math.min(2, points.length - 2); i < points.length; i += 2, order++) {
+        if (featureFilter != null && !featureFilter[feature]) {
+          continue;
+        }
+        final int previous = Math.max(0, i - 2);
+        final double x1 = points[previous];
+        final double y1 = points[previous + 1];
+        final double segmentX = points[i] - x1;
+        final double segmentY = points[i + 1] - y1;
+        final double lengthSquared = segmentX * segmentX + segmentY * segmentY;
+        final double scalar = lengthSquared == 0.0 ? 0
+            : Math.max(0, Math.min(1, (segmentX * (x - x1) + segmentY * (y - y1)) / lengthSquared));
+        final double nearestX = x1 + scalar * (points[i] - x1);
+        final double nearestY = y1 + scalar * (points[i + 1] - y1);
+        final double diffX = nearestX - x;
+        final double diffY = nearestY - y;
+        final double distance = Math.sqrt(diffX * diffX + diffY * diffY);
+        final double[] best = nearest.get(street);
+        if (best == null || distance < best[0]) {
+          nearest.put(street, new double[]{distance, order, nearestX, nearestY});
+        }
+      }
+    }
+    final List<Map.Entry<Integer, double[]>> entries = new ArrayList<>(nearest.entrySet());
+    entries.sort(Comparator.<Map.Entry<Integer, double[]>>comparingDouble(e -> e.getValue()[0])
+        .thenComparingDouble(e -> e.getValue()[1]));
+    final List<String> result = new ArrayList<>();
+    for (Map.Entry<Integer, double[]> entry : entries) {
+      final double[] best = entry.getValue();
+      if (best[0] <= maxDistance) {
+        result.add(format(entry.getKey(), best[2], best[3], best[0]));
+      }
+    }
+    return result;
+  }
+
+  private static List<ParsedStreet> randomStreets(Random random, int gridSize) {
+    final int streetCount = 1 + random.nextInt(40);
+    final int featureCount = 1 + random.nextInt(random.nextBoolean() ? 20 : 400);
+    final List<ParsedStreet> result = new ArrayList<>();
+    for (int feature = 0; feature < featureCount; feature++) {
+      final double[] coordinates = new double[2 * (1 + random.nextInt(5))];
+      for (int i = 0; i < coordinates.length; i++) {
+        coordinates[i] = 1000 + random.nextInt(gridSize);
+      }
+      result.add(new ParsedStreet("f" + feature, "Straat " + random.nextInt(streetCount),
+          "Plaats", "Gemeente", coordinates));
+    }
+    return result;
+  }
+
+  private static ParsedStreet street(String featureId, String name, double... coordinates) {
+    return new ParsedStreet(featureId, name, "Plaats", "Gemeente", coordinates);
+  }
+
+  private static String format(int street, double x, double y, double distance) {
+    return street + " (" + x + ", " + y + ") " + distance;
+  }
+}
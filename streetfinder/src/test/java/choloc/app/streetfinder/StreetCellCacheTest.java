@@ -0,0 +1,148 @@
+package choloc.app.streetfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import choloc.app.streetfinder.GeoManipulator.BoundingBox;
+import choloc.app.streetfinder.GeoManipulator.RdPoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import org.junit.Test;
+
+public class StreetCellCacheTest {
+
+  private static final int CELL_SIZE = 100;
+
+  @Test
+  public void answersLikeTheSource() throws Exception {
+    final Random random = new Random(28992);
+    final List<ParsedStreet> streets = new ArrayList<>();
+    for (int feature = 0; feature < 500; feature++) {
+      final double[] coordinates = new double[2 * (1 + random.nextInt(4))];
+      coordinates[0] = 100000 + random.nextInt(1000);
+      coordinates[1] = 400000 + random.nextInt(1000);
+      for (int i = 2; i < coordinates.length; i++) {
+        coordinates[i] = coordinates[i - 2] + random.nextInt(300) - 150;
+      }
+      streets.add(new ParsedStreet("f" + feature, "Straat " + feature, "Plaats", "Gemeente",
+          coordinates));
+    }
+    final FakeSource source = new FakeSource(streets);
+    final StreetCellCache cache = new StreetCellCache(CELL_SIZE, 1 << 24, 0);
+    for (int query = 0; query < 200; query++) {
+      final BoundingBox box = box(100000 + random.nextInt(1000), 400000 + random.nextInt(1000),
+          random.nextInt(250));
+      assertEquals("Query " + query, featureIds(source.findStreets(box)),
+          featureIds(cache.findStreets(box, source)));
+    }
+
+    // Once the cells of a box are known, the source isn't asked again.
+    cache.findStreets(box(100500, 400500, 300), source);
+    final int requestCount = source.requestCount;
+    assertEquals(featureIds(source.findStreets(box(100500, 400500, 300))),
+        featureIds(cache.findStreets(box(100500, 400500, 300), source)));
+    assertEquals(requestCount + 1, source.requestCount);
+    assertTrue(cache.getHitCount() > 0);
+  }
+
+  @Test
+  public void fetchesMissingCellsInOneRequest() throws Exception {
+    final List<ParsedStreet> streets = new ArrayList<>();
+    streets.add(street("a", 150, 150, 350, 150));
+    streets.add(street("b", 150, 250));
+    final FakeSource source = new FakeSource(streets);
+    final StreetCellCache cache = new StreetCellCache(CELL_SIZE, 1 << 24, 0);
+
+    assertEquals("[a, b]", featureIds(cache.findStreets(box(250, 200, 100), source)).toString());
+    assertEquals(1, source.requestCount);
+    assertEquals(9, cache.getMissCount());
+
+    // Segment a is in two cached cells, but is returned once.
+    assertEquals("[a]", featureIds(cache.findStreets(box(200, 150, 10), source)).toString());
+    assertEquals(1, source.requestCount);
+  }
+
+  @Test
+  public void mergesSegmentsWithoutFeatureIdByIdentity() throws Exception {
+    final List<ParsedStreet> streets = new ArrayList<>();
+    streets.add(street(null, 150, 150, 250, 150));
+    streets.add(street(null, 150, 150, 250, 150));
+    final StreetCellCache cache = new StreetCellCache(CELL_SIZE, 1 << 24, 0);
+    assertEquals(2, cache.findStreets(box(200, 150, 60), new FakeSource(streets)).size());
+  }
+
+  @Test
+  public void cachesOnlyCompleteFetches() throws Exception {
+    final List<ParsedStreet> streets = new ArrayList<>();
+    streets.add(street("a", 150, 150));
+    final FakeSource source = new FakeSource(streets);
+    final StreetCellCache cache = new StreetCellCache(CELL_SIZE, 1 << 24, 0);
+    final List<ParsedStreet> found = new ArrayList<>();
+
+    source.complete = false;
+    assertFalse(cache.findStreets(box(150, 150, 10), source, Deadline.after(1000), found::add));
+    assertEquals(1, found.size());
+    assertEquals(1, source.requestCount);
+
+    source.complete = true;
+    assertTrue(cache.findStreets(box(150, 150, 10), source, Deadline.after(1000), found::add));
+    assertEquals(2, source.requestCount);
+    assertTrue(cache.findStreets(box(150, 150, 10), source, Deadline.after(1000), found::add));
+    assertEquals(2, source.requestCount);
+    assertEquals(3, found.size());
+  }
+
+  private static BoundingBox box(double x, double y, double offset) {
+    return new BoundingBox(new RdPoint(x - offset, y - offset), new RdPoint(x + offset,
+        y + offset));
+  }
+
+  private static ParsedStreet street(String featureId, double... coordinates) {
+    return new ParsedStreet(featureId, "Kerkstraat", "Plaats", "Gemeente", coordinates);
+  }
+
+  private static TreeSet<String> featureIds(List<ParsedStreet> streets) {
+    final TreeSet<String> result = new TreeSet<>();
+    for (ParsedStreet street : streets) {
+      assertTrue("Duplicate " + street.getFeatureId(), result.add(street.getFeatureId()));
+    }
+    return result;
+  }
+
+  /**
+   * Street source that answers from a list, counting the requests.
+   */
+  private static class FakeSource implements StreetSource {
+
+    private final List<ParsedStreet> streets;
+    private int requestCount = 0;
+    private boolean complete = true;
+
+    FakeSource(List<ParsedStreet> streets) {
+      this.streets = streets;
+    }
+
+    @Override
+    public List<ParsedStreet> findStreets(BoundingBox boundingBox) {
+      requestCount++;
+      final List<ParsedStreet> result = new ArrayList<>();
+      for (ParsedStreet street : streets) {
+        if (boundingBox.intersectsLine(street.getCoordinates())) {
+          result.add(street);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public boolean findStreets(BoundingBox boundingBox, Deadline deadline,
+        Consumer<ParsedStreet> consumer) {
+      findStreets(boundingBox).forEach(consumer);
+      return complete;
+    }
+  }
+}